@@ -0,0 +1,271 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.segment.DimensionHandler;
+import io.druid.segment.Metadata;
+import io.druid.segment.QueryableIndex;
+import io.druid.segment.column.BitmapIndex;
+import io.druid.segment.column.Column;
+import io.druid.segment.column.ColumnCapabilities;
+import io.druid.segment.column.ComplexColumn;
+import io.druid.segment.column.DictionaryEncodedColumn;
+import io.druid.segment.column.GenericColumn;
+import io.druid.segment.column.RunLengthColumn;
+import io.druid.segment.column.SpatialIndex;
+import io.druid.segment.column.ValueType;
+import io.druid.segment.data.Indexed;
+import io.druid.segment.data.IndexedFloats;
+import io.druid.segment.data.IndexedLongs;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.joda.time.Interval;
+
+import com.metamx.collections.bitmap.BitmapFactory;
+
+/**
+ * QueryableIndex which serves numeric columns (time and metrics) from shared ColumnCache.
+ * Compressed numeric columns are decompressed block by block on every read, so hot columns are
+ * materialized once into on-heap arrays and reused by following queries until evicted.
+ * Dimension columns are delegated as is, their dictionary lookups are cached by Druid itself
+ * according to ColumnConfig.
+ */
+class CachingQueryableIndex implements QueryableIndex {
+	private final QueryableIndex delegate;
+	private final ColumnCache cache;
+
+	CachingQueryableIndex(QueryableIndex delegate, ColumnCache cache) {
+		this.delegate = delegate;
+		this.cache = cache;
+	}
+
+	@Override
+	public Interval getDataInterval() {
+		return delegate.getDataInterval();
+	}
+
+	@Override
+	public int getNumRows() {
+		return delegate.getNumRows();
+	}
+
+	@Override
+	public Indexed<String> getAvailableDimensions() {
+		return delegate.getAvailableDimensions();
+	}
+
+	@Override
+	public BitmapFactory getBitmapFactoryForDimensions() {
+		return delegate.getBitmapFactoryForDimensions();
+	}
+
+	@Override
+	public Metadata getMetadata() {
+		return delegate.getMetadata();
+	}
+
+	public Map<String, DimensionHandler> getDimensionHandlers() {
+		return delegate.getDimensionHandlers();
+	}
+
+	@Override
+	public Indexed<String> getColumnNames() {
+		return delegate.getColumnNames();
+	}
+
+	@Override
+	public Column getColumn(String columnName) {
+		Column column = delegate.getColumn(columnName);
+		if (column == null || !isMaterializable(column)) {
+			return column;
+		}
+		return new CachedColumn(columnName, column);
+	}
+
+	@Override
+	public void close() throws IOException {
+		cache.invalidate(this);
+		delegate.close();
+	}
+
+	private static boolean isMaterializable(Column column) {
+		ColumnCapabilities capabilities = column.getCapabilities();
+		return capabilities != null
+				&& !capabilities.hasMultipleValues()
+				&& (capabilities.getType() == ValueType.LONG || capabilities.getType() == ValueType.FLOAT);
+	}
+
+	private class CachedColumn implements Column {
+		private final String name;
+		private final Column column;
+
+		CachedColumn(String name, Column column) {
+			this.name = name;
+			this.column = column;
+		}
+
+		@Override
+		public GenericColumn getGenericColumn() {
+			MaterializedGenericColumn materialized = (MaterializedGenericColumn) cache.get(CachingQueryableIndex.this, name);
+			if (materialized != null) {
+				return materialized;
+			}
+			long sizeBytes = MaterializedGenericColumn.estimateSizeBytes(column.getCapabilities().getType(), column.getLength());
+			if (sizeBytes > cache.getMaxSizeBytes()) {
+				return column.getGenericColumn();
+			}
+			GenericColumn source = column.getGenericColumn();
+			try {
+				materialized = MaterializedGenericColumn.materialize(source);
+			} finally {
+				try {
+					source.close();
+				} catch (IOException e) {
+					// Nothing to release for in-memory copy, ignore.
+				}
+			}
+			if (!cache.put(CachingQueryableIndex.this, name, materialized, sizeBytes)) {
+				// Budget is exhausted, copy is not accounted anywhere, so it is not used either.
+				return column.getGenericColumn();
+			}
+			return materialized;
+		}
+
+		@Override
+		public ColumnCapabilities getCapabilities() {
+			return column.getCapabilities();
+		}
+
+		@Override
+		public int getLength() {
+			return column.getLength();
+		}
+
+		@Override
+		public DictionaryEncodedColumn getDictionaryEncoding() {
+			return column.getDictionaryEncoding();
+		}
+
+		public RunLengthColumn getRunLengthColumn() {
+			return column.getRunLengthColumn();
+		}
+
+		@Override
+		public ComplexColumn getComplexColumn() {
+			return column.getComplexColumn();
+		}
+
+		@Override
+		public BitmapIndex getBitmapIndex() {
+			return column.getBitmapIndex();
+		}
+
+		@Override
+		public SpatialIndex getSpatialIndex() {
+			return column.getSpatialIndex();
+		}
+	}
+
+	/**
+	 * Single valued long/float column copied into an on-heap array. Shared by concurrent queries,
+	 * so close() does nothing.
+	 */
+	static class MaterializedGenericColumn implements GenericColumn {
+		private static final long ARRAY_OVERHEAD_BYTES = 64;
+
+		private final ValueType type;
+		private final long[] longs;
+		private final float[] floats;
+
+		private MaterializedGenericColumn(ValueType type, long[] longs, float[] floats) {
+			this.type = type;
+			this.longs = longs;
+			this.floats = floats;
+		}
+
+		static long estimateSizeBytes(ValueType type, int length) {
+			return ARRAY_OVERHEAD_BYTES + (long) length * (type == ValueType.LONG ? 8 : 4);
+		}
+
+		static MaterializedGenericColumn materialize(GenericColumn source) {
+			int length = source.length();
+			if (source.getType() == ValueType.LONG) {
+				long[] values = new long[length];
+				for (int i = 0; i < length; i++) {
+					values[i] = source.getLongSingleValueRow(i);
+				}
+				return new MaterializedGenericColumn(ValueType.LONG, values, null);
+			}
+			float[] values = new float[length];
+			for (int i = 0; i < length; i++) {
+				values[i] = source.getFloatSingleValueRow(i);
+			}
+			return new MaterializedGenericColumn(ValueType.FLOAT, null, values);
+		}
+
+		@Override
+		public int length() {
+			return longs != null ? longs.length : floats.length;
+		}
+
+		@Override
+		public ValueType getType() {
+			return type;
+		}
+
+		@Override
+		public boolean hasMultipleValues() {
+			return false;
+		}
+
+		@Override
+		public String getStringSingleValueRow(int rowNum) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Indexed<String> getStringMultiValueRow(int rowNum) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public float getFloatSingleValueRow(int rowNum) {
+			return longs != null ? (float) longs[rowNum] : floats[rowNum];
+		}
+
+		@Override
+		public IndexedFloats getFloatMultiValueRow(int rowNum) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public long getLongSingleValueRow(int rowNum) {
+			return longs != null ? longs[rowNum] : (long) floats[rowNum];
+		}
+
+		@Override
+		public IndexedLongs getLongMultiValueRow(int rowNum) {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Memory bounded LRU cache of decompressed (materialized) column data shared by all QueryableIndex
+ * instances loaded through IndexHelper. Entries are keyed by owning index and column name, so
+ * all columns of an index can be dropped when the index is closed.
+ * Cached bytes are accounted in MemoryBudget. Cache only grows while budget has room and gives
+ * memory back (evicting least recently used entries) when other components need it.
+ */
+public class ColumnCache implements MemoryBudget.Reclaimable {
+	private final long maxSizeBytes;
+	private final MemoryBudget budget;
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	private long sizeBytes;
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+
+	/**
+	 * @param maxSizeBytes : Maximum total size of cached column data. 0 disables caching.
+	 * @param budget : Memory budget cached bytes are accounted in.
+	 */
+	public ColumnCache(long maxSizeBytes, MemoryBudget budget) {
+		this.maxSizeBytes = maxSizeBytes;
+		this.budget = budget;
+	}
+
+	public synchronized Object get(Object owner, String column) {
+		Entry entry = entries.get(new Key(owner, column));
+		if (entry == null) {
+			missCount++;
+			return null;
+		}
+		hitCount++;
+		return entry.value;
+	}
+
+	/**
+	 * Adds value to cache, evicting least recently used entries to stay within maxSizeBytes and
+	 * memory budget.
+	 *
+	 * @return true if value was cached, false if there is no room for it.
+	 */
+	public synchronized boolean put(Object owner, String column, Object value, long valueSizeBytes) {
+		if (valueSizeBytes > maxSizeBytes) {
+			return false;
+		}
+		Key key = new Key(owner, column);
+		Entry previous = entries.remove(key);
+		if (previous != null) {
+			remove(previous);
+		}
+		evict(sizeBytes + valueSizeBytes - maxSizeBytes);
+		while (!budget.tryReserveSpare(MemoryBudget.COLUMN_CACHE, valueSizeBytes)) {
+			// Memory freed while reservations wait belongs to them.
+			if (entries.isEmpty() || budget.getWaitingCount() > 0) {
+				return false;
+			}
+			evict(valueSizeBytes);
+		}
+		entries.put(key, new Entry(value, valueSizeBytes));
+		sizeBytes += valueSizeBytes;
+		return true;
+	}
+
+	@Override
+	public synchronized long reclaim(long bytes) {
+		return evict(bytes);
+	}
+
+	/**
+	 * Drops all cached columns of given owner.
+	 */
+	public synchronized void invalidate(Object owner) {
+		Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Key, Entry> entry = it.next();
+			if (entry.getKey().owner == owner) {
+				it.remove();
+				remove(entry.getValue());
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		for (Entry entry : entries.values()) {
+			remove(entry);
+		}
+		entries.clear();
+	}
+
+	public long getMaxSizeBytes() {
+		return maxSizeBytes;
+	}
+
+	public synchronized long getSizeBytes() {
+		return sizeBytes;
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	public synchronized long getEvictionCount() {
+		return evictionCount;
+	}
+
+	public synchronized double getHitRate() {
+		long requests = hitCount + missCount;
+		return requests == 0 ? 0 : (double) hitCount / requests;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("ColumnCache{size=%d/%d bytes, entries=%d, hits=%d, misses=%d, evictions=%d, hitRate=%.3f}",
+				sizeBytes, maxSizeBytes, entries.size(), hitCount, missCount, evictionCount, getHitRate());
+	}
+
+	/**
+	 * Evicts least recently used entries until at least given bytes are freed or cache is empty.
+	 */
+	private long evict(long bytes) {
+		long freed = 0;
+		Iterator<Entry> it = entries.values().iterator();
+		while (freed < bytes && it.hasNext()) {
+			Entry entry = it.next();
+			it.remove();
+			remove(entry);
+			freed += entry.sizeBytes;
+			evictionCount++;
+		}
+		return freed;
+	}
+
+	private void remove(Entry entry) {
+		sizeBytes -= entry.sizeBytes;
+		budget.release(MemoryBudget.COLUMN_CACHE, entry.sizeBytes);
+	}
+
+	private static class Key {
+		private final Object owner;
+		private final String column;
+
+		Key(Object owner, String column) {
+			this.owner = owner;
+			this.column = column;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key other = (Key) o;
+			return owner == other.owner && column.equals(other.column);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * System.identityHashCode(owner) + column.hashCode();
+		}
+	}
+
+	private static class Entry {
+		private final Object value;
+		private final long sizeBytes;
+
+		Entry(Object value, long sizeBytes) {
+			this.value = value;
+			this.sizeBytes = sizeBytes;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.data.input.InputRow;
+import io.druid.query.aggregation.AggregatorFactory;
+import io.druid.segment.incremental.IncrementalIndex;
+import io.druid.segment.incremental.IncrementalIndexSchema;
+import io.druid.segment.incremental.OnheapIncrementalIndex;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Wraps IncrementalIndex being filled with rows. Estimated size of IncrementalIndex is reserved from
+ * MemoryBudget while rows are added, so ingestion waits (or fails with MemoryBudgetExceededException)
+ * instead of running JVM out of memory. Reservation is released on close.
+ */
+class IndexBuilder implements Closeable {
+	/**
+	 * Estimated on-heap overhead of one incremental index row (key, facts map entry), of one
+	 * dimension values array and of one aggregator object, excluding its intermediate state.
+	 */
+	private static final long ROW_OVERHEAD_BYTES = 128;
+	private static final long DIMENSION_OVERHEAD_BYTES = 16;
+	private static final long AGGREGATOR_OVERHEAD_BYTES = 16;
+	/**
+	 * Memory is reserved from budget in chunks of this size instead of row by row.
+	 */
+	private static final long RESERVATION_BYTES = 1024 * 1024;
+
+	private final IncrementalIndex<?> incIndex;
+	private final MemoryBudget budget;
+	private final long metricBytes;
+	private long reserved;
+	private long pending;
+	private int numRows;
+
+	IndexBuilder(IncrementalIndexSchema indexSchema, MemoryBudget budget) {
+//		IncrementalIndex<?> incIndex =
+//			new OffheapIncrementalIndex(indexSchema, Utils.getBufferPool(), true, maxTotalBufferSize);
+		this.incIndex = new OnheapIncrementalIndex(indexSchema, true ,Integer.MAX_VALUE);
+		this.budget = budget;
+		this.metricBytes = estimateMetricBytes(indexSchema.getMetrics());
+	}
+
+	void add(InputRow row) throws IOException {
+		int size = incIndex.add(row);
+		// Rows rolled up into existing row only update aggregators.
+		if (size > numRows) {
+			numRows = size;
+			pending += estimateRowBytes(row);
+			if (pending >= RESERVATION_BYTES) {
+				budget.reserve(MemoryBudget.INGESTION, pending);
+				reserved += pending;
+				pending = 0;
+			}
+		}
+	}
+
+	IncrementalIndex<?> getIncrementalIndex() {
+		return incIndex;
+	}
+
+	@Override
+	public void close() {
+		incIndex.close();
+		budget.release(MemoryBudget.INGESTION, reserved);
+		reserved = 0;
+	}
+
+	private long estimateRowBytes(InputRow row) {
+		long bytes = ROW_OVERHEAD_BYTES + metricBytes;
+		for (String dimension : row.getDimensions()) {
+			bytes += DIMENSION_OVERHEAD_BYTES + 4L * row.getDimension(dimension).size();
+		}
+		return bytes;
+	}
+
+	private static long estimateMetricBytes(AggregatorFactory[] metrics) {
+		long bytes = 0;
+		for (AggregatorFactory metric : metrics) {
+			bytes += AGGREGATOR_OVERHEAD_BYTES + metric.getMaxIntermediateSize();
+		}
+		return bytes;
+	}
+}
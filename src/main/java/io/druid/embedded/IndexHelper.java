@@ -18,19 +18,46 @@ package io.druid.embedded;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.metamx.common.guava.CloseQuietly;
 
 import io.druid.data.input.InputRow;
+import io.druid.data.input.impl.DimensionSchema;
+import io.druid.data.input.impl.DimensionsSpec;
+import io.druid.data.input.impl.StringDimensionSchema;
+import io.druid.data.input.impl.TimestampSpec;
+import io.druid.granularity.QueryGranularity;
+import io.druid.query.aggregation.AggregatorFactory;
 import io.druid.query.aggregation.histogram.ApproximateHistogramFoldingSerde;
+import io.druid.query.aggregation.hyperloglog.HyperUniquesAggregatorFactory;
+import io.druid.query.aggregation.hyperloglog.HyperUniquesSerde;
 import io.druid.segment.IndexIO;
 import io.druid.segment.IndexMerger;
 import io.druid.segment.IndexSpec;
 import io.druid.segment.QueryableIndex;
+import io.druid.segment.column.Column;
+import io.druid.segment.column.ColumnCapabilities;
 import io.druid.segment.column.ColumnConfig;
-import io.druid.segment.incremental.IncrementalIndex;
+import io.druid.segment.column.DictionaryEncodedColumn;
+import io.druid.segment.column.ValueType;
 import io.druid.segment.incremental.IncrementalIndexSchema;
-import io.druid.segment.incremental.OnheapIncrementalIndex;
 import io.druid.segment.serde.ComplexMetrics;
 import io.druid.embedded.load.Loader;
 import io.druid.jackson.DefaultObjectMapper;
@@ -48,14 +75,27 @@ public class IndexHelper {
 	  static {
 	    ApproximateHistogramFoldingSerde serde = new ApproximateHistogramFoldingSerde();
 	    ComplexMetrics.registerSerde(serde.getTypeName(), serde);
+	    HyperUniquesSerde hyperUniquesSerde = new HyperUniquesSerde(Hashing.murmur3_128());
+	    ComplexMetrics.registerSerde(hyperUniquesSerde.getTypeName(), hyperUniquesSerde);
 	  }
 	  static ObjectMapper objectMapper = new DefaultObjectMapper();
+	  static MemoryBudget memoryBudget = MemoryBudget.getInstance();
+	  /**
+	   * Shared cache of materialized column data, bounded by "druid.column.cacheSizeBytes" (default 256MB).
+	   */
+	  static ColumnCache columnCache = new ColumnCache(Long.getLong("druid.column.cacheSizeBytes", 256L * 1024 * 1024), memoryBudget);
+	  static {
+	    memoryBudget.addReclaimable(columnCache);
+	  }
 	  static ColumnConfig columnConfig = new ColumnConfig() {
 			
+			/**
+			 * Size of dictionary lookup cache kept by Druid for each dimension column,
+			 * configured by "druid.column.lookupCacheSizeBytes" (default 64KB).
+			 */
 			@Override
 			public int columnCacheSizeBytes() {
-				// TODO Auto-generated method stub
-				return 0;
+				return Integer.getInteger("druid.column.lookupCacheSizeBytes", 64 * 1024);
 			}
 	  };
 	  static IndexIO indexIO = new IndexIO(objectMapper, columnConfig );
@@ -72,21 +112,164 @@ public class IndexHelper {
 	   */
 	  public static QueryableIndex getQueryableIndex(Loader loader, IncrementalIndexSchema indexSchema)
 	      throws IOException {
-//	    IncrementalIndex<?> incIndex =
-//	        new OffheapIncrementalIndex(indexSchema, Utils.getBufferPool(), true, maxTotalBufferSize);
-	    IncrementalIndex<?> incIndex = new OnheapIncrementalIndex(indexSchema, true ,Integer.MAX_VALUE);
+	    File tmpIndexDir = segmentDir(String.valueOf(loader.hashCode()));
+	    return buildIndex(loader, withSketchMetrics(indexSchema, loader), tmpIndexDir);
+	  }
+
+	  /**
+	   * Creates base segment from loader, together with its rollup materialized views. Queries run through
+	   * QueryHelper on returned index are routed to the smallest view which can answer them.
+	   *
+	   * @param loader
+	   * @param indexSchema
+	   * @param views : Rollup views to create for the segment
+	   * @return
+	   * @throws IOException
+	   */
+	  public static QueryableIndex getQueryableIndex(Loader loader, IncrementalIndexSchema indexSchema,
+	      List<RollupViewSpec> views) throws IOException {
+	    QueryableIndex index = getQueryableIndex(loader, indexSchema);
+	    buildRollupViews(index, views);
+	    return index;
+	  }
+
+	  /**
+	   * Creates rollup views of base segment (replacing and closing previously registered ones). View rows are read from
+	   * base segment and re-aggregated with combining aggregators of base segment metrics.
+	   */
+	  public static List<RollupViews.View> buildRollupViews(QueryableIndex base, List<RollupViewSpec> specs)
+	      throws IOException {
+	    AggregatorFactory[] metrics = getMetrics(base);
+	    List<String> metricNames = new ArrayList<String>();
+	    AggregatorFactory[] combining = new AggregatorFactory[metrics.length];
+	    Map<String, AggregatorFactory> viewMetrics = new LinkedHashMap<String, AggregatorFactory>();
+	    for (int i = 0; i < metrics.length; i++) {
+	      metricNames.add(metrics[i].getName());
+	      combining[i] = metrics[i].getCombiningFactory();
+	      viewMetrics.put(metrics[i].getName(), combining[i]);
+	    }
+	    List<RollupViews.View> views = new ArrayList<RollupViews.View>();
+	    for (RollupViewSpec spec : specs) {
+	      IncrementalIndexSchema viewSchema = new IncrementalIndexSchema(0, new TimestampSpec("timestamp", "iso", null),
+	          spec.getGranularity(), dimensionsSpec(spec.getDimensions()), combining, true);
+	      // Views of replaced or other base segments may still be mapped, so every view gets its own directory.
+	      File viewDir = segmentDir("view-" + spec.getName() + "-" + System.nanoTime());
+	      views.add(new RollupViews.View(spec, reindex(Arrays.asList(base), spec.getDimensions(), metricNames, viewSchema, viewDir),
+	          viewMetrics));
+	    }
+	    RollupViews.register(base, views);
+	    return views;
+	  }
+
+	  /**
+	   * Appends rows of loader to base segment. Returns new segment containing rows of both, with rollup views
+	   * of base segment rebuilt for it. Base segment is left as is and its views are unregistered and closed.
+	   */
+	  public static QueryableIndex append(QueryableIndex base, Loader loader, IncrementalIndexSchema indexSchema)
+	      throws IOException {
+	    QueryableIndex delta = getQueryableIndex(loader, indexSchema);
+	    try {
+	      return compact(Arrays.asList(base, delta), indexSchema.getGran());
+	    } finally {
+	      delta.close();
+	    }
+	  }
 
-	    for (InputRow row : loader) {
-	      incIndex.add(row);
+	  /**
+	   * Merges segments into one segment, rolled up at given granularity. Rollup views of merged segments are
+	   * rebuilt for the new segment, and unregistered from merged ones and closed.
+	   */
+	  public static QueryableIndex compact(List<QueryableIndex> indexes, QueryGranularity granularity)
+	      throws IOException {
+	    Set<String> dimensions = new LinkedHashSet<String>();
+	    Map<String, AggregatorFactory> metrics = new LinkedHashMap<String, AggregatorFactory>();
+	    Map<String, RollupViewSpec> viewSpecs = new LinkedHashMap<String, RollupViewSpec>();
+	    for (QueryableIndex index : indexes) {
+	      for (String dimension : index.getAvailableDimensions()) {
+	        dimensions.add(dimension);
+	      }
+	      for (AggregatorFactory metric : getMetrics(index)) {
+	        metrics.put(metric.getName(), metric.getCombiningFactory());
+	      }
+	      for (RollupViews.View view : RollupViews.getViews(index)) {
+	        viewSpecs.put(view.getSpec().getName(), view.getSpec());
+	      }
+	    }
+	    IncrementalIndexSchema schema = new IncrementalIndexSchema(0, new TimestampSpec("timestamp", "iso", null),
+	        granularity, dimensionsSpec(new ArrayList<String>(dimensions)),
+	        metrics.values().toArray(new AggregatorFactory[metrics.size()]), true);
+	    QueryableIndex compacted = reindex(indexes, new ArrayList<String>(dimensions), new ArrayList<String>(metrics.keySet()),
+	        schema, segmentDir("compact-" + System.nanoTime()));
+	    buildRollupViews(compacted, new ArrayList<RollupViewSpec>(viewSpecs.values()));
+	    for (QueryableIndex index : indexes) {
+	      RollupViews.unregister(index);
 	    }
+	    return compacted;
+	  }
+
+	  /**
+	   * Adds rows to IncrementalIndex, persists it to indexDir and loads it back.
+	   */
+	  static QueryableIndex buildIndex(Iterable<InputRow> rows, IncrementalIndexSchema indexSchema, File indexDir)
+	      throws IOException {
+	    IndexBuilder builder = new IndexBuilder(indexSchema, memoryBudget);
+	    try {
+	      for (InputRow row : rows) {
+	        builder.add(row);
+	      }
+	      return persist(builder, indexDir);
+	    } finally {
+	      builder.close();
+	    }
+	  }
+
+	  /**
+	   * Reads rows of indexes into new index with given schema (normally using combining aggregators).
+	   */
+	  private static QueryableIndex reindex(List<QueryableIndex> indexes, List<String> dimensions, List<String> metrics,
+	      IncrementalIndexSchema indexSchema, File indexDir) throws IOException {
+	    final IndexBuilder builder = new IndexBuilder(indexSchema, memoryBudget);
+	    try {
+	      for (QueryableIndex index : indexes) {
+	        IndexRows.read(index, dimensions, metrics, new IndexRows.Handler() {
+	          @Override
+	          public void handle(InputRow row) throws IOException {
+	            builder.add(row);
+	          }
+	        });
+	      }
+	      return persist(builder, indexDir);
+	    } finally {
+	      builder.close();
+	    }
+	  }
+
+	  private static QueryableIndex persist(IndexBuilder builder, File indexDir) throws IOException {
+	    merger.persist(builder.getIncrementalIndex(), indexDir, new IndexSpec());
+	    return new CachingQueryableIndex(indexIO.loadIndex(indexDir), columnCache);
+	  }
+
+	  private static AggregatorFactory[] getMetrics(QueryableIndex index) {
+	    if (index.getMetadata() == null || index.getMetadata().getAggregators() == null) {
+	      throw new IllegalArgumentException("Segment has no aggregators in its metadata, it can't be re-aggregated");
+	    }
+	    return index.getMetadata().getAggregators();
+	  }
+
+	  private static DimensionsSpec dimensionsSpec(List<String> dimensions) {
+	    List<DimensionSchema> schemas = new ArrayList<DimensionSchema>();
+	    for (String dimension : dimensions) {
+	      schemas.add(new StringDimensionSchema(dimension));
+	    }
+	    return new DimensionsSpec(schemas, null, null);
+	  }
+
+	  private static File segmentDir(String name) {
 	    String tmpDir = System.getProperty("druid.segment.dir");
 	    if(tmpDir == null) {
 	    	tmpDir = System.getProperty("java.io.tmpdir") + File.separator +  "druid-tmp-index-";
 	    }
-	    File tmpIndexDir = new File(tmpDir + loader.hashCode());
-	    
-	    merger.persist(incIndex, tmpIndexDir, new IndexSpec());
-	    return indexIO.loadIndex(tmpIndexDir);
+	    return new File(tmpDir + name);
 	  }
 
 	  /**
@@ -97,7 +280,164 @@ public class IndexHelper {
 	   * @throws IOException
 	   */
 	  public static QueryableIndex getQueryableIndex(File indexDir) throws IOException {
-	    QueryableIndex index = indexIO.loadIndex(indexDir);
+	    QueryableIndex index = new CachingQueryableIndex(indexIO.loadIndex(indexDir), columnCache);
 	    return index;
 	  }
+
+	  /**
+	   * Loads index directories in parallel, using "druid.segment.loadThreads" threads
+	   * (default number of processors).
+	   *
+	   * @param indexDirs
+	   * @return QueryableIndexes in same order as indexDirs
+	   * @throws IOException
+	   */
+	  public static List<QueryableIndex> getQueryableIndexes(List<File> indexDirs) throws IOException {
+	    return getQueryableIndexes(indexDirs,
+	        Integer.getInteger("druid.segment.loadThreads", Runtime.getRuntime().availableProcessors()));
+	  }
+
+	  /**
+	   * Loads index directories in parallel. Loading time is recorded in StartupReport. If any directory
+	   * fails to load, indexes already loaded are closed.
+	   *
+	   * @param indexDirs
+	   * @param numThreads : Number of loading threads
+	   * @return QueryableIndexes in same order as indexDirs
+	   * @throws IOException
+	   */
+	  public static List<QueryableIndex> getQueryableIndexes(List<File> indexDirs, int numThreads) throws IOException {
+	    long start = System.nanoTime();
+	    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(numThreads, indexDirs.size())),
+	        daemonThreadFactory("segment-loader-%d"));
+	    try {
+	      List<Future<QueryableIndex>> futures = new ArrayList<Future<QueryableIndex>>();
+	      for (final File indexDir : indexDirs) {
+	        futures.add(executor.submit(new Callable<QueryableIndex>() {
+	          @Override
+	          public QueryableIndex call() throws IOException {
+	            return getQueryableIndex(indexDir);
+	          }
+	        }));
+	      }
+	      List<QueryableIndex> indexes = new ArrayList<QueryableIndex>();
+	      try {
+	        for (Future<QueryableIndex> future : futures) {
+	          indexes.add(Futures.get(future, IOException.class));
+	        }
+	      } catch (IOException | RuntimeException e) {
+	        closeLoaded(futures);
+	        throw e;
+	      }
+	      return indexes;
+	    } finally {
+	      executor.shutdownNow();
+	      StartupReport.record("segments.load", start);
+	    }
+	  }
+
+	  /**
+	   * Warms up indexes in background thread : reads data of hot columns (including "__time"), so first
+	   * queries don't pay for paging in mmapped files and decompression. Numeric hot columns are
+	   * materialized into column cache, dictionaries of hot dimensions are read through.
+	   * Warm-up time is recorded in StartupReport.
+	   *
+	   * @param indexes
+	   * @param hotColumns : Columns to read fully, may be empty.
+	   * @return Future completing once warm-up is done.
+	   */
+	  public static Future<?> warmUp(final List<QueryableIndex> indexes, final List<String> hotColumns) {
+	    final ExecutorService executor = Executors.newSingleThreadExecutor(daemonThreadFactory("segment-warmup-%d"));
+	    try {
+	      return executor.submit(new Callable<Void>() {
+	        @Override
+	        public Void call() throws IOException {
+	          long start = System.nanoTime();
+	          for (QueryableIndex index : indexes) {
+	            warmUp(index, hotColumns);
+	          }
+	          StartupReport.record("segments.warmup", start);
+	          return null;
+	        }
+	      });
+	    } finally {
+	      executor.shutdown();
+	    }
+	  }
+
+	  /**
+	   * Waits for all loads to finish and closes indexes which were loaded.
+	   */
+	  private static void closeLoaded(List<Future<QueryableIndex>> futures) {
+	    for (Future<QueryableIndex> future : futures) {
+	      try {
+	        CloseQuietly.close(future.get());
+	      } catch (InterruptedException e) {
+	        Thread.currentThread().interrupt();
+	        return;
+	      } catch (ExecutionException e) {
+	        // Failed load, nothing to close.
+	      }
+	    }
+	  }
+
+	  @SuppressWarnings("rawtypes")
+	  private static void warmUp(QueryableIndex index, List<String> hotColumns) throws IOException {
+	    // Time column is not listed in getColumnNames(), so hot columns are looked up by name.
+	    for (String name : hotColumns) {
+	      Column column = index.getColumn(name);
+	      if (column == null) {
+	        continue;
+	      }
+	      ColumnCapabilities capabilities = column.getCapabilities();
+	      if (capabilities.isDictionaryEncoded()) {
+	        DictionaryEncodedColumn dictionary = column.getDictionaryEncoding();
+	        try {
+	          for (int i = 0; i < dictionary.getCardinality(); i++) {
+	            dictionary.lookupName(i);
+	          }
+	        } finally {
+	          dictionary.close();
+	        }
+	      } else if (capabilities.getType() == ValueType.LONG || capabilities.getType() == ValueType.FLOAT) {
+	        column.getGenericColumn().close();
+	      }
+	    }
+	  }
+
+	  private static ThreadFactory daemonThreadFactory(String nameFormat) {
+	    return new ThreadFactoryBuilder().setDaemon(true).setNameFormat(nameFormat).build();
+	  }
+
+	  /**
+	   * Cache of materialized column data shared by all indexes returned by this class. Exposes
+	   * size and hit rate statistics.
+	   */
+	  public static ColumnCache getColumnCache() {
+	    return columnCache;
+	  }
+
+	  /**
+	   * Adds hyperUnique metric for each sketch column declared by loader, unless schema already
+	   * contains metric with the same name.
+	   */
+	  static IncrementalIndexSchema withSketchMetrics(IncrementalIndexSchema indexSchema, Loader loader) {
+	    Map<String, String> sketchColumns = loader.getSketchColumns();
+	    if (sketchColumns.isEmpty()) {
+	      return indexSchema;
+	    }
+	    List<AggregatorFactory> metrics = new ArrayList<AggregatorFactory>(Arrays.asList(indexSchema.getMetrics()));
+	    for (Map.Entry<String, String> entry : sketchColumns.entrySet()) {
+	      boolean declared = false;
+	      for (AggregatorFactory metric : metrics) {
+	        declared |= metric.getName().equals(entry.getValue());
+	      }
+	      if (!declared) {
+	        metrics.add(new HyperUniquesAggregatorFactory(entry.getValue(), entry.getKey()));
+	      }
+	    }
+	    return new IncrementalIndexSchema(indexSchema.getMinTimestamp(), indexSchema.getTimestampSpec(),
+	        indexSchema.getGran(), indexSchema.getDimensionsSpec(),
+	        metrics.toArray(new AggregatorFactory[metrics.size()]), indexSchema.isRollup());
+	  }
 }
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.data.input.InputRow;
+import io.druid.data.input.MapBasedInputRow;
+import io.druid.granularity.QueryGranularity;
+import io.druid.query.dimension.DefaultDimensionSpec;
+import io.druid.segment.Cursor;
+import io.druid.segment.DimensionSelector;
+import io.druid.segment.LongColumnSelector;
+import io.druid.segment.ObjectColumnSelector;
+import io.druid.segment.QueryableIndex;
+import io.druid.segment.QueryableIndexStorageAdapter;
+import io.druid.segment.column.Column;
+import io.druid.segment.data.IndexedInts;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joda.time.Interval;
+
+import com.google.common.base.Throwables;
+import com.metamx.common.guava.Accumulator;
+import com.metamx.common.guava.Sequence;
+
+/**
+ * Reads rows of QueryableIndex back as InputRows (dimension values and already aggregated metric
+ * values), so they can be re-ingested into rolled up or compacted index with combining aggregators.
+ */
+class IndexRows {
+	private static final QueryGranularity ALL = QueryGranularity.fromString("ALL");
+
+	interface Handler {
+		void handle(InputRow row) throws IOException;
+	}
+
+	/**
+	 * Passes every row of index to handler. Rows are read inside cursor sequence, as columns are
+	 * closed once the sequence is done.
+	 *
+	 * @param dimensions : Dimensions to read
+	 * @param metrics : Metric columns to read
+	 */
+	static void read(QueryableIndex index, final List<String> dimensions, final List<String> metrics,
+			final Handler handler) throws IOException {
+		Interval dataInterval = index.getDataInterval();
+		Interval interval = new Interval(dataInterval.getStartMillis(), dataInterval.getEndMillis() + 1);
+		Sequence<Cursor> cursors = new QueryableIndexStorageAdapter(index).makeCursors(null, interval, ALL, false);
+		try {
+			cursors.accumulate(null, new Accumulator<Object, Cursor>() {
+				@Override
+				public Object accumulate(Object accumulated, Cursor cursor) {
+					LongColumnSelector timeSelector = cursor.makeLongColumnSelector(Column.TIME_COLUMN_NAME);
+					List<DimensionSelector> dimensionSelectors = new ArrayList<DimensionSelector>();
+					for (String dimension : dimensions) {
+						dimensionSelectors.add(cursor.makeDimensionSelector(new DefaultDimensionSpec(dimension, dimension)));
+					}
+					List<ObjectColumnSelector> metricSelectors = new ArrayList<ObjectColumnSelector>();
+					for (String metric : metrics) {
+						metricSelectors.add(cursor.makeObjectColumnSelector(metric));
+					}
+					for (; !cursor.isDone(); cursor.advance()) {
+						Map<String, Object> event = new HashMap<String, Object>();
+						for (int i = 0; i < dimensions.size(); i++) {
+							Object value = getDimensionValue(dimensionSelectors.get(i));
+							if (value != null) {
+								event.put(dimensions.get(i), value);
+							}
+						}
+						for (int i = 0; i < metrics.size(); i++) {
+							ObjectColumnSelector selector = metricSelectors.get(i);
+							if (selector != null) {
+								event.put(metrics.get(i), selector.get());
+							}
+						}
+						try {
+							handler.handle(new MapBasedInputRow(timeSelector.get(), dimensions, event));
+						} catch (IOException e) {
+							throw Throwables.propagate(e);
+						}
+					}
+					return accumulated;
+				}
+			});
+		} catch (RuntimeException e) {
+			Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+			throw e;
+		}
+	}
+
+	private static Object getDimensionValue(DimensionSelector selector) {
+		IndexedInts row = selector.getRow();
+		if (row.size() == 0) {
+			return null;
+		}
+		if (row.size() == 1) {
+			return selector.lookupName(row.get(0));
+		}
+		List<String> values = new ArrayList<String>(row.size());
+		for (int i = 0; i < row.size(); i++) {
+			values.add(selector.lookupName(row.get(i)));
+		}
+		return values;
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Central memory budget shared by ingestion, query buffers and caches of this JVM. Components reserve
+ * estimated bytes before allocating and release them once memory is freed.
+ * Reservations which don't fit wait (backpressure) up to configured time for other components to release
+ * memory, after asking registered Reclaimable components (like column cache) to give memory back. If memory
+ * is still not available, MemoryBudgetExceededException is thrown.
+ *
+ * Default instance is configured with system properties :
+ * "druid.memory.budgetBytes" (default 3/4 of max heap), "druid.memory.waitMillis" (default 30s)
+ * and "druid.memory.queryBytes" (working memory reserved per running query, default 16MB).
+ */
+public class MemoryBudget {
+	public static final String INGESTION = "ingestion";
+	public static final String PROCESSING_BUFFERS = "processingBuffers";
+	public static final String MERGE_BUFFERS = "mergeBuffers";
+	public static final String COLUMN_CACHE = "columnCache";
+	public static final String QUERIES = "queries";
+
+	private static final MemoryBudget INSTANCE = new MemoryBudget(
+			Long.getLong("druid.memory.budgetBytes", Runtime.getRuntime().maxMemory() / 4 * 3),
+			Long.getLong("druid.memory.waitMillis", 30000L),
+			Long.getLong("druid.memory.queryBytes", 16L * 1024 * 1024));
+	/**
+	 * Waiting reservations retry reclaiming memory at least this often, as memory can be freed up
+	 * without release() being called (like cache entries becoming evictable).
+	 */
+	private static final long RECLAIM_INTERVAL_MILLIS = 100;
+
+	/**
+	 * Component holding memory which can be given back on demand.
+	 */
+	public interface Reclaimable {
+		/**
+		 * Frees up to requested bytes and releases them to the budget.
+		 *
+		 * @return Number of bytes released.
+		 */
+		long reclaim(long bytes);
+	}
+
+	private final long maxBytes;
+	private final long waitMillis;
+	private final long queryBytes;
+	private final Map<String, Long> usage = new TreeMap<String, Long>();
+	private final List<Reclaimable> reclaimables = new CopyOnWriteArrayList<Reclaimable>();
+	private long usedBytes;
+	private int waitingCount;
+
+	public MemoryBudget(long maxBytes, long waitMillis, long queryBytes) {
+		this.maxBytes = maxBytes;
+		this.waitMillis = waitMillis;
+		this.queryBytes = queryBytes;
+	}
+
+	public static MemoryBudget getInstance() {
+		return INSTANCE;
+	}
+
+	public void addReclaimable(Reclaimable reclaimable) {
+		reclaimables.add(reclaimable);
+	}
+
+	/**
+	 * Reserves bytes only if they are available right now.
+	 */
+	public synchronized boolean tryReserve(String component, long bytes) {
+		if (usedBytes + bytes > maxBytes) {
+			return false;
+		}
+		add(component, bytes);
+		return true;
+	}
+
+	/**
+	 * Reserves bytes only if they are available right now and no reservation is waiting for memory.
+	 * Used by Reclaimable components (like column cache), so they don't take memory released for
+	 * waiting reservations.
+	 */
+	public synchronized boolean tryReserveSpare(String component, long bytes) {
+		return waitingCount == 0 && tryReserve(component, bytes);
+	}
+
+	/**
+	 * @return Number of reservations currently waiting for memory.
+	 */
+	public synchronized int getWaitingCount() {
+		return waitingCount;
+	}
+
+	/**
+	 * Reserves bytes, reclaiming memory from Reclaimable components and waiting for other components
+	 * to release memory if needed. Memory is reclaimed again each time waiting reservation wakes up.
+	 *
+	 * @throws MemoryBudgetExceededException if bytes could not be reserved within configured wait time.
+	 */
+	public void reserve(String component, long bytes) {
+		if (bytes > maxBytes) {
+			throw new MemoryBudgetExceededException(String.format(
+					"%s requested %d bytes which is more than whole memory budget. %s", component, bytes, this));
+		}
+		if (tryReserve(component, bytes)) {
+			return;
+		}
+		long deadline = System.currentTimeMillis() + waitMillis;
+		synchronized (this) {
+			waitingCount++;
+		}
+		try {
+			while (true) {
+				reclaim(bytes);
+				synchronized (this) {
+					if (usedBytes + bytes <= maxBytes) {
+						add(component, bytes);
+						return;
+					}
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						throw new MemoryBudgetExceededException(String.format(
+								"%s could not reserve %d bytes within %d ms. %s", component, bytes, waitMillis, this));
+					}
+					try {
+						wait(Math.min(remaining, RECLAIM_INTERVAL_MILLIS));
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new MemoryBudgetExceededException(String.format(
+								"Interrupted while %s was waiting for %d bytes. %s", component, bytes, this));
+					}
+				}
+			}
+		} finally {
+			synchronized (this) {
+				waitingCount--;
+			}
+		}
+	}
+
+	public synchronized void release(String component, long bytes) {
+		add(component, -bytes);
+		notifyAll();
+	}
+
+	/**
+	 * Admits query by reserving its working memory. Queries wait in line while budget is used up.
+	 *
+	 * @return Reserved bytes, which need to be released once query is finished.
+	 */
+	public long admitQuery() {
+		reserve(QUERIES, queryBytes);
+		return queryBytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public synchronized long getUsedBytes() {
+		return usedBytes;
+	}
+
+	public synchronized long getAvailableBytes() {
+		return maxBytes - usedBytes;
+	}
+
+	/**
+	 * @return Current reserved bytes per component.
+	 */
+	public synchronized Map<String, Long> getUsage() {
+		return new TreeMap<String, Long>(usage);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("Memory budget used %d of %d bytes %s", usedBytes, maxBytes, usage);
+	}
+
+	private void reclaim(long bytes) {
+		// Called without holding budget lock, reclaimables release through release().
+		long needed = bytes - getAvailableBytes();
+		for (Reclaimable reclaimable : reclaimables) {
+			if (needed <= 0) {
+				break;
+			}
+			needed -= reclaimable.reclaim(needed);
+		}
+	}
+
+	private void add(String component, long bytes) {
+		Long current = usage.get(component);
+		long updated = (current == null ? 0 : current) + bytes;
+		usage.put(component, updated);
+		usedBytes += bytes;
+	}
+}
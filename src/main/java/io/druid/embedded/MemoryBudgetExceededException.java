@@ -0,0 +1,28 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+/**
+ * Thrown when ingestion, query or buffer allocation could not get memory from MemoryBudget.
+ */
+public class MemoryBudgetExceededException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public MemoryBudgetExceededException(String message) {
+		super(message);
+	}
+}
@@ -21,9 +21,10 @@ import java.nio.ByteBuffer;
 import io.druid.collections.BlockingPool;
 import io.druid.collections.StupidPool;
 import io.druid.jackson.DefaultObjectMapper;
-import io.druid.query.DefaultQueryRunnerFactoryConglomerate;
 import io.druid.query.DruidProcessingConfig;
+import io.druid.query.FinalizeResultsQueryRunner;
 import io.druid.query.Query;
+import io.druid.query.QueryRunner;
 import io.druid.query.QueryRunnerFactory;
 import io.druid.query.QueryRunnerFactoryConglomerate;
 import io.druid.query.groupby.GroupByQuery;
@@ -61,7 +62,11 @@ import io.druid.segment.QueryableIndexSegment;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.JsonMappingException;
@@ -69,7 +74,9 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.google.common.base.Suppliers;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.metamx.common.guava.Sequence;
+import com.metamx.common.guava.Sequences;
 
 /**
  * This Helper class maintains all required query interface related classes and invokes it based
@@ -78,32 +85,187 @@ import com.metamx.common.guava.Sequence;
  */
 public class QueryHelper {
 	private static final QueryRunnerFactoryConglomerate conglomerate;
+	private static final int MERGE_BUFFER_SIZE = 10 * 1024 * 1024;
+	/**
+	 * Query context flag to finalize aggregated values, like distinct count estimate of hyperUnique.
+	 */
+	public static final String FINALIZE = "finalize";
+	private static volatile QueryPlanner planner = QueryPlanner.fromSystemProperties();
 
 	/*
-	 * Initialize QueryRunnerFactoryConglomerate.
+	 * Initialize QueryRunnerFactoryConglomerate. Factories (and their buffer pools) are created on
+	 * first use of each query type.
 	 */
 	static {
-		HashMap<Class<? extends Query>, QueryRunnerFactory> map =
-	        Maps.<Class<? extends Query>, QueryRunnerFactory>newHashMap();
+		final HashMap<Class<? extends Query>, Supplier<QueryRunnerFactory>> map =
+	        Maps.<Class<? extends Query>, Supplier<QueryRunnerFactory>>newHashMap();
 
 	    // Register all query runner factories.
-	    map.put(GroupByQuery.class, getGroupByQueryRunnerFactory());
-	    map.put(TopNQuery.class, getTopNQueryRunnerFactory());
-	    map.put(SearchQuery.class, getSearchQueryRunnerFactory());
-	    map.put(SelectQuery.class, getSelectQueryRunnerFactory());
-	    map.put(SegmentMetadataQuery.class, getSegmentMetadataQueryRunnerFactory());
-	    map.put(TimeseriesQuery.class, getTimeseriesQueryRunnerFactory());
-	    map.put(TimeBoundaryQuery.class, getTimeBoundaryQueryRunnerFactory());
+	    map.put(GroupByQuery.class, lazy(GroupByQuery.class, new Supplier<QueryRunnerFactory>() {
+	      @Override
+	      public QueryRunnerFactory get() {
+	        return getGroupByQueryRunnerFactory();
+	      }
+	    }));
+	    map.put(TopNQuery.class, lazy(TopNQuery.class, new Supplier<QueryRunnerFactory>() {
+	      @Override
+	      public QueryRunnerFactory get() {
+	        return getTopNQueryRunnerFactory();
+	      }
+	    }));
+	    map.put(SearchQuery.class, lazy(SearchQuery.class, new Supplier<QueryRunnerFactory>() {
+	      @Override
+	      public QueryRunnerFactory get() {
+	        return getSearchQueryRunnerFactory();
+	      }
+	    }));
+	    map.put(SelectQuery.class, lazy(SelectQuery.class, new Supplier<QueryRunnerFactory>() {
+	      @Override
+	      public QueryRunnerFactory get() {
+	        return getSelectQueryRunnerFactory();
+	      }
+	    }));
+	    map.put(SegmentMetadataQuery.class, lazy(SegmentMetadataQuery.class, new Supplier<QueryRunnerFactory>() {
+	      @Override
+	      public QueryRunnerFactory get() {
+	        return getSegmentMetadataQueryRunnerFactory();
+	      }
+	    }));
+	    map.put(TimeseriesQuery.class, lazy(TimeseriesQuery.class, new Supplier<QueryRunnerFactory>() {
+	      @Override
+	      public QueryRunnerFactory get() {
+	        return getTimeseriesQueryRunnerFactory();
+	      }
+	    }));
+	    map.put(TimeBoundaryQuery.class, lazy(TimeBoundaryQuery.class, new Supplier<QueryRunnerFactory>() {
+	      @Override
+	      public QueryRunnerFactory get() {
+	        return getTimeBoundaryQueryRunnerFactory();
+	      }
+	    }));
 
+	    conglomerate = new QueryRunnerFactoryConglomerate() {
+	      @Override
+	      @SuppressWarnings("unchecked")
+	      public <T, QueryType extends Query<T>> QueryRunnerFactory<T, QueryType> findFactory(QueryType query) {
+	        Supplier<QueryRunnerFactory> factory = map.get(query.getClass());
+	        return factory == null ? null : factory.get();
+	      }
+	    };
+	}
 
-	    DefaultQueryRunnerFactoryConglomerate _conglomerate =
-	        new DefaultQueryRunnerFactoryConglomerate(map);
-	    conglomerate = _conglomerate;
+	/**
+	 * Memoizes factory supplier, recording factory creation time in StartupReport.
+	 */
+	private static Supplier<QueryRunnerFactory> lazy(final Class<? extends Query> queryType,
+			final Supplier<QueryRunnerFactory> supplier) {
+		return Suppliers.memoize(new Supplier<QueryRunnerFactory>() {
+			@Override
+			public QueryRunnerFactory get() {
+				long start = System.nanoTime();
+				QueryRunnerFactory factory = supplier.get();
+				StartupReport.record("factory." + queryType.getSimpleName(), start);
+				return factory;
+			}
+		});
 	}
 
-	@SuppressWarnings("unchecked")
+	/**
+	 * Runs query on index, or on the smallest rollup view of index which can answer it. Query is admitted
+	 * only if its working memory can be reserved from MemoryBudget, otherwise it waits in line and fails
+	 * with MemoryBudgetExceededException once wait time is over.
+	 * Results are materialized before reservation is released, so returned sequence holds no memory
+	 * reservation and need not be consumed.
+	 * Aggregated values are returned as is (like HyperLogLogCollector for hyperUnique), unless query
+	 * context has "finalize" : true.
+	 */
 	public static Sequence run(Query query, QueryableIndex index) {
-		return findFactory(query).createRunner(new QueryableIndexSegment("", index)).run(query, null);
+		return run(query, index, new HashMap<String, Object>());
+	}
+
+	/**
+	 * Runs query on index like {@link #run(Query, QueryableIndex)}, query engines add their response
+	 * context entries to responseContext. Query with context flag "profile" : true gets profiling breakdown
+	 * in responseContext, see {@link QueryProfiler}.
+	 */
+	public static Sequence run(Query query, QueryableIndex index, Map<String, Object> responseContext) {
+		return run(query, Collections.singletonList(index), responseContext, false);
+	}
+
+	/**
+	 * Runs query on every index and merges their results with query's toolchest.
+	 */
+	public static Sequence run(Query query, List<QueryableIndex> indexes, Map<String, Object> responseContext) {
+		return run(query, indexes, responseContext, true);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Sequence run(Query query, List<QueryableIndex> indexes, Map<String, Object> responseContext,
+			boolean merge) {
+		MemoryBudget budget = MemoryBudget.getInstance();
+		long reservedBytes = budget.admitQuery();
+		List<RollupViews.View> acquired = new ArrayList<RollupViews.View>();
+		try {
+			QueryPlanner.Plan plan = planner.plan(query, indexes.size());
+			Query planned = plan.getQuery();
+			QueryRunnerFactory factory = findFactory(planned);
+			QueryProfiler profiler = QueryProfiler.isEnabled(query) ? new QueryProfiler(plan.getExplanation()) : null;
+			List<QueryRunner> runners = new ArrayList<QueryRunner>();
+			for (int i = 0; i < indexes.size(); i++) {
+				RollupViews.View view = RollupViews.acquire(planned, indexes.get(i));
+				if (view != null) {
+					acquired.add(view);
+				}
+				QueryableIndex target = view == null ? indexes.get(i) : view.getIndex();
+				if (profiler == null) {
+					runners.add(factory.createRunner(new QueryableIndexSegment("segment-" + i, target)));
+				} else {
+					String name = view == null ? "segment-" + i : "segment-" + i + "/" + view.getSpec().getName();
+					runners.add(profiler.profile(factory, target, "segment-" + i, name));
+				}
+			}
+			QueryRunner runner = merge
+					? factory.getToolchest().mergeResults(factory.mergeRunners(MoreExecutors.sameThreadExecutor(), runners))
+					: runners.get(0);
+			if (query.getContextBoolean(FINALIZE, false)) {
+				runner = new FinalizeResultsQueryRunner(runner, factory.getToolchest());
+			}
+			long start = System.nanoTime();
+			Sequence sequence = runner.run(planned, responseContext);
+			if (!merge && planned instanceof GroupByQuery) {
+				// Only merging toolchest applies limitSpec and having, apply them to single segment results too.
+				sequence = ((GroupByQuery) planned).applyLimit(sequence);
+			}
+			sequence = plan.postProcess(sequence);
+			if (profiler != null) {
+				sequence = profiler.complete(sequence, responseContext, start);
+			}
+			return Sequences.simple(Sequences.toList(sequence, new ArrayList()));
+		} finally {
+			// Results are materialized, views may be closed if they got unregistered meanwhile.
+			for (RollupViews.View view : acquired) {
+				view.release();
+			}
+			budget.release(MemoryBudget.QUERIES, reservedBytes);
+		}
+	}
+
+	/**
+	 * Sets planner which may rewrite queries to cheaper query type before they are run.
+	 */
+	public static void setQueryPlanner(QueryPlanner queryPlanner) {
+		planner = queryPlanner;
+	}
+
+	public static QueryPlanner getQueryPlanner() {
+		return planner;
+	}
+
+	/**
+	 * @return Description of rewrite which is applied to query by current planner.
+	 */
+	public static String explain(Query query) {
+		return planner.explain(query);
 	}
 
 	@SuppressWarnings("unchecked")
@@ -179,7 +341,8 @@ public class QueryHelper {
 		          @Override
 		          public ByteBuffer get()
 		          {
-		            return ByteBuffer.allocate(10 * 1024 * 1024);
+		            MemoryBudget.getInstance().reserve(MemoryBudget.MERGE_BUFFERS, MERGE_BUFFER_SIZE);
+		            return ByteBuffer.allocate(MERGE_BUFFER_SIZE);
 		          }
 		        },
 		        2 // There are some tests that need to allocate two buffers (simulating two levels of merging)
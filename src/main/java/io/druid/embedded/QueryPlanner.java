@@ -0,0 +1,297 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.data.input.MapBasedRow;
+import io.druid.data.input.Row;
+import io.druid.granularity.QueryGranularity;
+import io.druid.query.Druids;
+import io.druid.query.Query;
+import io.druid.query.Result;
+import io.druid.query.TableDataSource;
+import io.druid.query.aggregation.AggregatorFactory;
+import io.druid.query.aggregation.PostAggregator;
+import io.druid.query.dimension.DimensionSpec;
+import io.druid.query.groupby.GroupByQuery;
+import io.druid.query.groupby.orderby.DefaultLimitSpec;
+import io.druid.query.groupby.orderby.LimitSpec;
+import io.druid.query.groupby.orderby.NoopLimitSpec;
+import io.druid.query.groupby.orderby.OrderByColumnSpec;
+import io.druid.query.timeseries.TimeseriesResultValue;
+import io.druid.query.topn.DimensionAndMetricValueExtractor;
+import io.druid.query.topn.InvertedTopNMetricSpec;
+import io.druid.query.topn.NumericTopNMetricSpec;
+import io.druid.query.topn.TopNMetricSpec;
+import io.druid.query.topn.TopNQueryBuilder;
+import io.druid.query.topn.TopNResultValue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Function;
+import com.metamx.common.guava.Sequence;
+import com.metamx.common.guava.Sequences;
+
+/**
+ * Optional planning step of QueryHelper which rewrites generic GroupByQuery to cheaper native query
+ * type answering the same question :
+ * <ul>
+ * <li>groupBy without dimensions, having and limit is answered by TimeseriesQuery (empty buckets skipped).</li>
+ * <li>groupBy on one dimension, with "ALL" granularity, no having and limit ordered by single metric
+ * is answered by TopNQuery, if allowed by TopNPolicy.</li>
+ * </ul>
+ * Results of rewritten query are converted back to groupBy Rows.
+ * Default planner is configured with system properties "druid.query.rewrite.enabled" (default false)
+ * and "druid.query.rewrite.topNPolicy" (default EXACT).
+ */
+public class QueryPlanner {
+
+	/**
+	 * When groupBy may be rewritten to TopNQuery.
+	 */
+	public enum TopNPolicy {
+		/** Never rewrite to TopNQuery. */
+		NEVER,
+		/** Rewrite only when query runs on single segment, where TopNQuery is exact. */
+		EXACT,
+		/** Rewrite also for multiple segments, where merged TopNQuery results are approximate. */
+		ALWAYS
+	}
+
+	private static final QueryGranularity ALL = QueryGranularity.fromString("ALL");
+
+	private final boolean enabled;
+	private final TopNPolicy topNPolicy;
+
+	public QueryPlanner(boolean enabled, TopNPolicy topNPolicy) {
+		this.enabled = enabled;
+		this.topNPolicy = topNPolicy;
+	}
+
+	public static QueryPlanner fromSystemProperties() {
+		return new QueryPlanner(Boolean.getBoolean("druid.query.rewrite.enabled"),
+				TopNPolicy.valueOf(System.getProperty("druid.query.rewrite.topNPolicy", TopNPolicy.EXACT.name())));
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public TopNPolicy getTopNPolicy() {
+		return topNPolicy;
+	}
+
+	/**
+	 * @param query : Query to plan
+	 * @param numSegments : Number of segments query is going to run on
+	 * @return Plan with query to run, which is original query if no rewrite applies.
+	 */
+	@SuppressWarnings("rawtypes")
+	public Plan plan(Query query, int numSegments) {
+		if (!enabled) {
+			return new Plan(query, "Query rewriting is disabled", null);
+		}
+		if (!(query instanceof GroupByQuery)) {
+			return new Plan(query, "Not a groupBy query", null);
+		}
+		GroupByQuery groupBy = (GroupByQuery) query;
+		if (!(groupBy.getDataSource() instanceof TableDataSource)) {
+			return new Plan(query, "groupBy on non table data source is not rewritten", null);
+		}
+		if (groupBy.getHavingSpec() != null) {
+			return new Plan(query, "groupBy with having is not rewritten", null);
+		}
+		if (groupBy.getDimensions().isEmpty()) {
+			if (!isUnlimited(groupBy.getLimitSpec())) {
+				return new Plan(query, "groupBy without dimensions but with limit is not rewritten", null);
+			}
+			return new Plan(toTimeseries(groupBy),
+					"groupBy without dimensions rewritten to timeseries", TIMESERIES_TO_ROWS);
+		}
+		if (groupBy.getDimensions().size() == 1) {
+			String reason = checkTopN(groupBy, numSegments);
+			if (reason != null) {
+				return new Plan(query, reason, null);
+			}
+			DefaultLimitSpec limitSpec = (DefaultLimitSpec) groupBy.getLimitSpec();
+			return new Plan(toTopN(groupBy, limitSpec),
+					String.format("groupBy on dimension [%s] ordered by [%s] with limit %d rewritten to topN",
+							groupBy.getDimensions().get(0).getOutputName(),
+							limitSpec.getColumns().get(0).getDimension(), limitSpec.getLimit()),
+					TOPN_TO_ROWS);
+		}
+		return new Plan(query, "groupBy on multiple dimensions is not rewritten", null);
+	}
+
+	/**
+	 * @return Description of rewrite applied to query running on single segment.
+	 */
+	public String explain(Query<?> query) {
+		return plan(query, 1).getExplanation();
+	}
+
+	/**
+	 * @return Reason why groupBy can't be rewritten to topN, null if it can.
+	 */
+	private String checkTopN(GroupByQuery groupBy, int numSegments) {
+		if (topNPolicy == TopNPolicy.NEVER) {
+			return "Rewriting to topN is disabled";
+		}
+		if (topNPolicy == TopNPolicy.EXACT && numSegments > 1) {
+			return "topN over multiple segments is approximate, not rewritten with policy EXACT";
+		}
+		if (!ALL.equals(groupBy.getGranularity())) {
+			// groupBy limit applies to all time buckets together, topN threshold to each bucket.
+			return "groupBy with granularity other than ALL is not rewritten to topN";
+		}
+		LimitSpec limitSpec = groupBy.getLimitSpec();
+		if (!(limitSpec instanceof DefaultLimitSpec)
+				|| ((DefaultLimitSpec) limitSpec).getColumns().size() != 1
+				|| ((DefaultLimitSpec) limitSpec).getLimit() == Integer.MAX_VALUE) {
+			return "groupBy on one dimension is rewritten to topN only with limit ordered by one metric";
+		}
+		String orderBy = ((DefaultLimitSpec) limitSpec).getColumns().get(0).getDimension();
+		for (AggregatorFactory aggregator : groupBy.getAggregatorSpecs()) {
+			if (aggregator.getName().equals(orderBy)) {
+				return null;
+			}
+		}
+		for (PostAggregator postAggregator : groupBy.getPostAggregatorSpecs()) {
+			if (postAggregator.getName().equals(orderBy)) {
+				return null;
+			}
+		}
+		return String.format("groupBy ordered by [%s] which is not a metric is not rewritten to topN", orderBy);
+	}
+
+	private static boolean isUnlimited(LimitSpec limitSpec) {
+		if (limitSpec == null || limitSpec instanceof NoopLimitSpec) {
+			return true;
+		}
+		return limitSpec instanceof DefaultLimitSpec
+				&& ((DefaultLimitSpec) limitSpec).getColumns().isEmpty()
+				&& ((DefaultLimitSpec) limitSpec).getLimit() == Integer.MAX_VALUE;
+	}
+
+	private static Query toTimeseries(GroupByQuery groupBy) {
+		Map<String, Object> context = new HashMap<String, Object>();
+		if (groupBy.getContext() != null) {
+			context.putAll(groupBy.getContext());
+		}
+		// groupBy doesn't return rows for empty time buckets.
+		context.put("skipEmptyBuckets", true);
+		return Druids.newTimeseriesQueryBuilder()
+				.dataSource(groupBy.getDataSource())
+				.intervals(groupBy.getQuerySegmentSpec())
+				.filters(groupBy.getDimFilter())
+				.granularity(groupBy.getGranularity())
+				.aggregators(groupBy.getAggregatorSpecs())
+				.postAggregators(groupBy.getPostAggregatorSpecs())
+				.context(context)
+				.build();
+	}
+
+	private static Query toTopN(GroupByQuery groupBy, DefaultLimitSpec limitSpec) {
+		OrderByColumnSpec orderBy = limitSpec.getColumns().get(0);
+		TopNMetricSpec metricSpec = new NumericTopNMetricSpec(orderBy.getDimension());
+		if (orderBy.getDirection() == OrderByColumnSpec.Direction.ASCENDING) {
+			metricSpec = new InvertedTopNMetricSpec(metricSpec);
+		}
+		DimensionSpec dimension = groupBy.getDimensions().get(0);
+		return new TopNQueryBuilder()
+				.dataSource(groupBy.getDataSource())
+				.intervals(groupBy.getQuerySegmentSpec())
+				.filters(groupBy.getDimFilter())
+				.granularity(groupBy.getGranularity())
+				.dimension(dimension)
+				.metric(metricSpec)
+				.threshold(limitSpec.getLimit())
+				.aggregators(groupBy.getAggregatorSpecs())
+				.postAggregators(groupBy.getPostAggregatorSpecs())
+				.context(groupBy.getContext())
+				.build();
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static final Function<Sequence, Sequence> TIMESERIES_TO_ROWS = new Function<Sequence, Sequence>() {
+		@Override
+		@SuppressWarnings("unchecked")
+		public Sequence apply(Sequence results) {
+			return Sequences.map(results, new Function<Result<TimeseriesResultValue>, Row>() {
+				@Override
+				public Row apply(Result<TimeseriesResultValue> result) {
+					return new MapBasedRow(result.getTimestamp(), result.getValue().getBaseObject());
+				}
+			});
+		}
+	};
+
+	@SuppressWarnings("rawtypes")
+	private static final Function<Sequence, Sequence> TOPN_TO_ROWS = new Function<Sequence, Sequence>() {
+		@Override
+		@SuppressWarnings("unchecked")
+		public Sequence apply(Sequence results) {
+			return Sequences.concat(Sequences.map(results, new Function<Result<TopNResultValue>, Sequence<Row>>() {
+				@Override
+				public Sequence<Row> apply(Result<TopNResultValue> result) {
+					List<Row> rows = new ArrayList<Row>();
+					for (DimensionAndMetricValueExtractor value : result.getValue().getValue()) {
+						rows.add(new MapBasedRow(result.getTimestamp(), value.getBaseObject()));
+					}
+					return Sequences.simple(rows);
+				}
+			}));
+		}
+	};
+
+	/**
+	 * Query chosen by planner together with explanation of the choice.
+	 */
+	@SuppressWarnings("rawtypes")
+	public static class Plan {
+		private final Query query;
+		private final String explanation;
+		private final Function<Sequence, Sequence> resultConverter;
+
+		Plan(Query query, String explanation, Function<Sequence, Sequence> resultConverter) {
+			this.query = query;
+			this.explanation = explanation;
+			this.resultConverter = resultConverter;
+		}
+
+		public Query getQuery() {
+			return query;
+		}
+
+		public String getExplanation() {
+			return explanation;
+		}
+
+		public boolean isRewritten() {
+			return resultConverter != null;
+		}
+
+		/**
+		 * Converts results of planned query to results of original query.
+		 */
+		public Sequence postProcess(Sequence results) {
+			return resultConverter == null ? results : resultConverter.apply(results);
+		}
+	}
+}
@@ -0,0 +1,378 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.granularity.QueryGranularity;
+import io.druid.query.Query;
+import io.druid.query.QueryRunner;
+import io.druid.query.QueryRunnerFactory;
+import io.druid.query.dimension.DimensionSpec;
+import io.druid.query.filter.AndDimFilter;
+import io.druid.query.filter.BitmapIndexSelector;
+import io.druid.query.filter.DimFilter;
+import io.druid.query.filter.Filter;
+import io.druid.query.filter.NotDimFilter;
+import io.druid.query.filter.OrDimFilter;
+import io.druid.query.groupby.GroupByQuery;
+import io.druid.query.search.search.SearchQuery;
+import io.druid.query.select.SelectQuery;
+import io.druid.query.timeseries.TimeseriesQuery;
+import io.druid.query.topn.TopNQuery;
+import io.druid.segment.ColumnSelectorBitmapIndexSelector;
+import io.druid.segment.Cursor;
+import io.druid.segment.DimensionSelector;
+import io.druid.segment.FloatColumnSelector;
+import io.druid.segment.LongColumnSelector;
+import io.druid.segment.ObjectColumnSelector;
+import io.druid.segment.QueryableIndex;
+import io.druid.segment.QueryableIndexSegment;
+import io.druid.segment.QueryableIndexStorageAdapter;
+import io.druid.segment.StorageAdapter;
+import io.druid.segment.column.ColumnCapabilities;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+import org.joda.time.Interval;
+
+import com.google.common.base.Function;
+import com.metamx.common.guava.Sequence;
+import com.metamx.common.guava.Sequences;
+
+/**
+ * Opt-in per query profiling, enabled with query context flag "profile" : true. Response context of
+ * profiled query gets "profile" entry with breakdown per segment and in total :
+ * <ul>
+ * <li>filterMillis : bitmap filter evaluation, matchedRows / totalRows and selectivity of each filter.</li>
+ * <li>scanMillis : cursor scanning of matched rows (excluding filter evaluation).</li>
+ * <li>aggregationMillis : rest of segment processing time (aggregation and result building).</li>
+ * <li>bufferWaitMillis : time spent taking processing buffers from pool (including their allocation).</li>
+ * <li>mergeMillis : merging of segment results (total only).</li>
+ * </ul>
+ * Filter and scan stages are measured while segment is processed, by timing cursor creation (which
+ * evaluates filter bitmap) and cursor advancing of storage adapter query engines run on. Timing each row
+ * adds some overhead to scan stage. Per filter statistics are evaluated on bitmap indexes after segment
+ * is processed and aren't part of its timings. Results of profiled query are materialized before they are
+ * returned.
+ */
+public class QueryProfiler {
+	public static final String CONTEXT_KEY = "profile";
+
+	private static final ThreadLocal<Map<String, Object>> currentSegment = new ThreadLocal<Map<String, Object>>();
+
+	private final List<Map<String, Object>> segments = Collections.synchronizedList(new ArrayList<Map<String, Object>>());
+	/**
+	 * Time spent in profiled segment runners, including profiling itself.
+	 */
+	private final AtomicLong segmentNanos = new AtomicLong();
+	private final String plan;
+
+	/**
+	 * @param plan : Description of planner decision, added to total breakdown.
+	 */
+	public QueryProfiler(String plan) {
+		this.plan = plan;
+	}
+
+	public static boolean isEnabled(Query<?> query) {
+		return query.getContextBoolean(CONTEXT_KEY, false);
+	}
+
+	/**
+	 * Records time spent taking a buffer from pool by currently profiled segment, if any.
+	 */
+	static void recordBufferWait(long nanos) {
+		Map<String, Object> segment = currentSegment.get();
+		if (segment != null) {
+			segment.put("bufferWaitMillis", (Double) segment.get("bufferWaitMillis") + millis(nanos));
+		}
+	}
+
+	/**
+	 * Creates runner of one segment, whose storage adapter times filter and scan stages. Runner
+	 * materializes segment results to measure processing time.
+	 *
+	 * @param index : Index runner is querying
+	 * @param segmentId : Identifier of segment passed to factory
+	 * @param segmentName : Name reported for segment
+	 */
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	public QueryRunner profile(QueryRunnerFactory factory, final QueryableIndex index, String segmentId,
+			final String segmentName) {
+		final StageTimer timer = new StageTimer();
+		final QueryRunner runner = factory.createRunner(new QueryableIndexSegment(segmentId, index) {
+			@Override
+			public StorageAdapter asStorageAdapter() {
+				return new ProfiledStorageAdapter(index, timer);
+			}
+		});
+		return new QueryRunner() {
+			@Override
+			public Sequence run(Query query, Map responseContext) {
+				Map<String, Object> segment = new LinkedHashMap<String, Object>();
+				segment.put("segment", segmentName);
+				segment.put("bufferWaitMillis", 0.0);
+				segments.add(segment);
+
+				long start = System.nanoTime();
+				currentSegment.set(segment);
+				List results;
+				try {
+					results = Sequences.toList(runner.run(query, responseContext), new ArrayList());
+				} finally {
+					currentSegment.remove();
+				}
+				long runNanos = System.nanoTime() - start;
+				segment.put("filterMillis", millis(timer.filterNanos));
+				segment.put("scanMillis", millis(timer.scanNanos));
+				segment.put("aggregationMillis", millis(Math.max(0, runNanos - timer.filterNanos - timer.scanNanos)));
+				segment.put("totalMillis", millis(runNanos));
+				segment.put("scannedRows", timer.scannedRows);
+				profileFilters(getFilter(query), index, segment);
+				segmentNanos.addAndGet(System.nanoTime() - start);
+				return Sequences.simple(results);
+			}
+		};
+	}
+
+	/**
+	 * Materializes merged results, measuring merge time, and puts profile into response context.
+	 *
+	 * @param startNanos : System.nanoTime() taken before query runner was run. Segment runners may be run
+	 * eagerly (without merging), so total time is measured from there.
+	 */
+	@SuppressWarnings({"rawtypes", "unchecked"})
+	public Sequence complete(Sequence merged, Map<String, Object> responseContext, long startNanos) {
+		List results = Sequences.toList(merged, new ArrayList());
+		long totalNanos = System.nanoTime() - startNanos;
+
+		Map<String, Object> total = new LinkedHashMap<String, Object>();
+		total.put("plan", plan);
+		total.put("segments", segments.size());
+		long totalRows = 0;
+		long matchedRows = 0;
+		for (String stage : new String[] {"filterMillis", "scanMillis", "aggregationMillis", "bufferWaitMillis"}) {
+			double sum = 0;
+			for (Map<String, Object> segment : segments) {
+				sum += (Double) segment.get(stage);
+			}
+			total.put(stage, sum);
+		}
+		for (Map<String, Object> segment : segments) {
+			totalRows += (Long) segment.get("totalRows");
+			matchedRows += (Long) segment.get("matchedRows");
+		}
+		total.put("mergeMillis", millis(Math.max(0, totalNanos - segmentNanos.get())));
+		total.put("totalMillis", millis(totalNanos));
+		total.put("totalRows", totalRows);
+		total.put("matchedRows", matchedRows);
+
+		Map<String, Object> profile = new LinkedHashMap<String, Object>();
+		profile.put("segments", new ArrayList<Map<String, Object>>(segments));
+		profile.put("total", total);
+		responseContext.put(CONTEXT_KEY, profile);
+		return Sequences.simple(results);
+	}
+
+	/**
+	 * Evaluates bitmap of whole filter and of each leaf filter.
+	 */
+	private static void profileFilters(DimFilter dimFilter, QueryableIndex index, Map<String, Object> segment) {
+		long totalRows = index.getNumRows();
+		segment.put("totalRows", totalRows);
+		segment.put("matchedRows", totalRows);
+		if (dimFilter == null) {
+			return;
+		}
+		BitmapIndexSelector selector = new ColumnSelectorBitmapIndexSelector(index.getBitmapFactoryForDimensions(), index);
+		Long matched = matchedRows(dimFilter.toFilter(), selector);
+		if (matched != null) {
+			segment.put("matchedRows", matched);
+		}
+
+		Map<String, Object> filters = new LinkedHashMap<String, Object>();
+		List<DimFilter> leaves = new ArrayList<DimFilter>();
+		addLeaves(dimFilter, leaves);
+		for (DimFilter leaf : leaves) {
+			Map<String, Object> stats = new LinkedHashMap<String, Object>();
+			long leafStart = System.nanoTime();
+			Long leafMatched = matchedRows(leaf.toFilter(), selector);
+			stats.put("millis", millis(System.nanoTime() - leafStart));
+			if (leafMatched == null) {
+				stats.put("bitmap", false);
+			} else {
+				stats.put("matchedRows", leafMatched);
+				stats.put("selectivity", totalRows == 0 ? 0.0 : (double) leafMatched / totalRows);
+			}
+			filters.put(leaf.toString(), stats);
+		}
+		segment.put("filters", filters);
+	}
+
+	/**
+	 * @return Rows matched by filter bitmap, null if filter can't be evaluated on bitmaps.
+	 */
+	private static Long matchedRows(Filter filter, BitmapIndexSelector selector) {
+		try {
+			return (long) filter.getBitmapIndex(selector).size();
+		} catch (UnsupportedOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Time spent in stages of one segment, segment is processed by single thread at a time.
+	 */
+	private static class StageTimer {
+		private long filterNanos;
+		private long scanNanos;
+		private long scannedRows;
+	}
+
+	/**
+	 * Storage adapter timing cursor creation, which evaluates filter bitmap, as filter stage.
+	 */
+	private static class ProfiledStorageAdapter extends QueryableIndexStorageAdapter {
+		private final StageTimer timer;
+
+		ProfiledStorageAdapter(QueryableIndex index, StageTimer timer) {
+			super(index);
+			this.timer = timer;
+		}
+
+		@Override
+		public Sequence<Cursor> makeCursors(Filter filter, Interval interval, QueryGranularity gran, boolean descending) {
+			long start = System.nanoTime();
+			Sequence<Cursor> cursors = super.makeCursors(filter, interval, gran, descending);
+			timer.filterNanos += System.nanoTime() - start;
+			return Sequences.map(cursors, new Function<Cursor, Cursor>() {
+				@Override
+				public Cursor apply(Cursor cursor) {
+					return new ProfiledCursor(cursor, timer);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Cursor timing advancing over rows as scan stage.
+	 */
+	private static class ProfiledCursor implements Cursor {
+		private final Cursor delegate;
+		private final StageTimer timer;
+
+		ProfiledCursor(Cursor delegate, StageTimer timer) {
+			this.delegate = delegate;
+			this.timer = timer;
+		}
+
+		@Override
+		public void advance() {
+			long start = System.nanoTime();
+			delegate.advance();
+			timer.scanNanos += System.nanoTime() - start;
+			timer.scannedRows++;
+		}
+
+		@Override
+		public void advanceTo(int offset) {
+			long start = System.nanoTime();
+			delegate.advanceTo(offset);
+			timer.scanNanos += System.nanoTime() - start;
+		}
+
+		@Override
+		public boolean isDone() {
+			return delegate.isDone();
+		}
+
+		@Override
+		public void reset() {
+			delegate.reset();
+		}
+
+		@Override
+		public DateTime getTime() {
+			return delegate.getTime();
+		}
+
+		@Override
+		public DimensionSelector makeDimensionSelector(DimensionSpec dimensionSpec) {
+			return delegate.makeDimensionSelector(dimensionSpec);
+		}
+
+		@Override
+		public FloatColumnSelector makeFloatColumnSelector(String columnName) {
+			return delegate.makeFloatColumnSelector(columnName);
+		}
+
+		@Override
+		public LongColumnSelector makeLongColumnSelector(String columnName) {
+			return delegate.makeLongColumnSelector(columnName);
+		}
+
+		@Override
+		public ObjectColumnSelector makeObjectColumnSelector(String columnName) {
+			return delegate.makeObjectColumnSelector(columnName);
+		}
+
+		public ColumnCapabilities getColumnCapabilities(String columnName) {
+			return delegate.getColumnCapabilities(columnName);
+		}
+	}
+
+	private static void addLeaves(DimFilter filter, List<DimFilter> leaves) {
+		if (filter instanceof AndDimFilter) {
+			for (DimFilter field : ((AndDimFilter) filter).getFields()) {
+				addLeaves(field, leaves);
+			}
+		} else if (filter instanceof OrDimFilter) {
+			for (DimFilter field : ((OrDimFilter) filter).getFields()) {
+				addLeaves(field, leaves);
+			}
+		} else if (filter instanceof NotDimFilter) {
+			addLeaves(((NotDimFilter) filter).getField(), leaves);
+		} else if (filter != null) {
+			leaves.add(filter);
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static DimFilter getFilter(Query query) {
+		if (query instanceof GroupByQuery) {
+			return ((GroupByQuery) query).getDimFilter();
+		} else if (query instanceof TopNQuery) {
+			return ((TopNQuery) query).getDimensionsFilter();
+		} else if (query instanceof TimeseriesQuery) {
+			return ((TimeseriesQuery) query).getDimensionsFilter();
+		} else if (query instanceof SearchQuery) {
+			return ((SearchQuery) query).getDimensionsFilter();
+		} else if (query instanceof SelectQuery) {
+			return ((SelectQuery) query).getDimensionsFilter();
+		}
+		return null;
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1e6;
+	}
+}
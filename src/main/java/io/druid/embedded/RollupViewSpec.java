@@ -0,0 +1,61 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.granularity.QueryGranularity;
+
+import java.util.List;
+
+/**
+ * Definition of rollup materialized view : subset of dimensions of base segment at coarser
+ * query granularity. Metrics of base segment are re-aggregated with their combining aggregators.
+ * Ex : For report schema, view on "pool", "report", "metric" at "HOUR" granularity
+ * new RollupViewSpec("pool_report_metric_hourly", Arrays.asList("pool", "report", "metric"), QueryGranularity.fromString("HOUR"))
+ */
+public class RollupViewSpec {
+	private final String name;
+	private final List<String> dimensions;
+	private final QueryGranularity granularity;
+
+	/**
+	 * @param name : Name of view, unique per base segment
+	 * @param dimensions : Dimensions of base segment kept in view
+	 * @param granularity : Query granularity of view, should be same or coarser than base segment's
+	 */
+	public RollupViewSpec(String name, List<String> dimensions, QueryGranularity granularity) {
+		this.name = name;
+		this.dimensions = dimensions;
+		this.granularity = granularity;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public List<String> getDimensions() {
+		return dimensions;
+	}
+
+	public QueryGranularity getGranularity() {
+		return granularity;
+	}
+
+	@Override
+	public String toString() {
+		return "RollupViewSpec{name=" + name + ", dimensions=" + dimensions + ", granularity=" + granularity + "}";
+	}
+}
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.granularity.QueryGranularity;
+import io.druid.query.Query;
+import io.druid.query.aggregation.AggregatorFactory;
+import io.druid.query.aggregation.CountAggregatorFactory;
+import io.druid.query.aggregation.FilteredAggregatorFactory;
+import io.druid.query.dimension.DimensionSpec;
+import io.druid.query.filter.AndDimFilter;
+import io.druid.query.filter.BoundDimFilter;
+import io.druid.query.filter.DimFilter;
+import io.druid.query.filter.InDimFilter;
+import io.druid.query.filter.NotDimFilter;
+import io.druid.query.filter.OrDimFilter;
+import io.druid.query.filter.RegexDimFilter;
+import io.druid.query.filter.SearchQueryDimFilter;
+import io.druid.query.filter.SelectorDimFilter;
+import io.druid.query.groupby.GroupByQuery;
+import io.druid.query.timeseries.TimeseriesQuery;
+import io.druid.query.topn.TopNQuery;
+import io.druid.segment.QueryableIndex;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.joda.time.Interval;
+
+import com.metamx.common.guava.CloseQuietly;
+
+/**
+ * Registry of rollup materialized views built for base segments, and routing of queries to them.
+ * A view can answer groupBy, topN and timeseries query if it has all dimensions the query groups
+ * and filters on, all columns its aggregators read, and its granularity divides query granularity
+ * and interval boundaries, and its metrics were rolled up with the same aggregators the query uses
+ * on them (matching names). Queries are sent to the smallest view which can answer them, otherwise
+ * to the base segment.
+ */
+public class RollupViews {
+	private static final QueryGranularity ALL = QueryGranularity.fromString("ALL");
+	private static final QueryGranularity NONE = QueryGranularity.fromString("NONE");
+	/**
+	 * Granularity alignment is verified bucket by bucket, up to this many buckets.
+	 */
+	private static final int MAX_ALIGNMENT_CHECKS = 10000;
+
+	private static final Map<QueryableIndex, List<View>> views =
+			Collections.synchronizedMap(new WeakHashMap<QueryableIndex, List<View>>());
+
+	/**
+	 * Materialized view of base segment.
+	 */
+	public static class View {
+		private final RollupViewSpec spec;
+		private final QueryableIndex index;
+		private final Set<String> columns;
+		private final Map<String, AggregatorFactory> metrics;
+		private int references;
+		private boolean retired;
+
+		/**
+		 * @param metrics : Metric name to combining aggregator it was rolled up with
+		 */
+		View(RollupViewSpec spec, QueryableIndex index, Map<String, AggregatorFactory> metrics) {
+			this.spec = spec;
+			this.index = index;
+			this.metrics = metrics;
+			this.columns = new HashSet<String>(spec.getDimensions());
+			this.columns.addAll(metrics.keySet());
+		}
+
+		public RollupViewSpec getSpec() {
+			return spec;
+		}
+
+		public QueryableIndex getIndex() {
+			return index;
+		}
+
+		/**
+		 * Marks view as used by a query, so it isn't closed until released.
+		 *
+		 * @return false if view has been retired meanwhile and must not be used.
+		 */
+		synchronized boolean acquire() {
+			if (retired) {
+				return false;
+			}
+			references++;
+			return true;
+		}
+
+		/**
+		 * Releases view acquired by {@link RollupViews#acquire(Query, QueryableIndex)}.
+		 */
+		public synchronized void release() {
+			if (--references == 0 && retired) {
+				CloseQuietly.close(index);
+			}
+		}
+
+		/**
+		 * Closes view once queries using it release it.
+		 */
+		synchronized void retire() {
+			if (!retired) {
+				retired = true;
+				if (references == 0) {
+					CloseQuietly.close(index);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Registers views of base segment, retiring views previously registered for it.
+	 */
+	static void register(QueryableIndex base, List<View> baseViews) {
+		close(views.put(base, Collections.unmodifiableList(new ArrayList<View>(baseViews))));
+	}
+
+	/**
+	 * Removes views of base segment, for example after base segment has been replaced by appended or
+	 * compacted one. Removed views are closed once queries running on them are done.
+	 */
+	public static List<View> unregister(QueryableIndex base) {
+		List<View> removed = views.remove(base);
+		close(removed);
+		return removed == null ? Collections.<View>emptyList() : removed;
+	}
+
+	private static void close(List<View> removed) {
+		if (removed != null) {
+			for (View view : removed) {
+				view.retire();
+			}
+		}
+	}
+
+	public static List<View> getViews(QueryableIndex base) {
+		List<View> baseViews = views.get(base);
+		return baseViews == null ? Collections.<View>emptyList() : baseViews;
+	}
+
+	/**
+	 * @return Smallest view of base segment which can answer query, or base segment itself. Returned view
+	 * is not acquired, use {@link #acquire(Query, QueryableIndex)} to query it.
+	 */
+	@SuppressWarnings("rawtypes")
+	public static QueryableIndex route(Query query, QueryableIndex base) {
+		View view = select(query, base);
+		return view == null ? base : view.getIndex();
+	}
+
+	/**
+	 * Selects smallest view of base segment which can answer query and acquires it, so it stays open
+	 * until {@link View#release()} is called even if it is unregistered meanwhile.
+	 *
+	 * @return Acquired view, null if there is none.
+	 */
+	@SuppressWarnings("rawtypes")
+	public static View acquire(Query query, QueryableIndex base) {
+		while (true) {
+			View view = select(query, base);
+			if (view == null || view.acquire()) {
+				return view;
+			}
+			// View got retired after it was selected, select among views registered now.
+		}
+	}
+
+	/**
+	 * @return Smallest view of base segment which can answer query, null if there is none.
+	 */
+	@SuppressWarnings("rawtypes")
+	public static View select(Query query, QueryableIndex base) {
+		View best = null;
+		for (View view : getViews(base)) {
+			if (view.getIndex().getNumRows() < base.getNumRows()
+					&& (best == null || view.getIndex().getNumRows() < best.getIndex().getNumRows())
+					&& canAnswer(view, query, base)) {
+				best = view;
+			}
+		}
+		return best;
+	}
+
+	@SuppressWarnings("rawtypes")
+	static boolean canAnswer(View view, Query query, QueryableIndex base) {
+		Set<String> required = new HashSet<String>();
+		List<AggregatorFactory> aggregators;
+		QueryGranularity granularity;
+		if (query instanceof GroupByQuery) {
+			GroupByQuery groupBy = (GroupByQuery) query;
+			for (DimensionSpec dimension : groupBy.getDimensions()) {
+				required.add(dimension.getDimension());
+			}
+			if (!addFilterColumns(groupBy.getDimFilter(), required)) {
+				return false;
+			}
+			aggregators = groupBy.getAggregatorSpecs();
+			granularity = groupBy.getGranularity();
+		} else if (query instanceof TopNQuery) {
+			TopNQuery topN = (TopNQuery) query;
+			required.add(topN.getDimensionSpec().getDimension());
+			if (!addFilterColumns(topN.getDimensionsFilter(), required)) {
+				return false;
+			}
+			aggregators = topN.getAggregatorSpecs();
+			granularity = topN.getGranularity();
+		} else if (query instanceof TimeseriesQuery) {
+			TimeseriesQuery timeseries = (TimeseriesQuery) query;
+			if (!addFilterColumns(timeseries.getDimensionsFilter(), required)) {
+				return false;
+			}
+			aggregators = timeseries.getAggregatorSpecs();
+			granularity = timeseries.getGranularity();
+		} else {
+			return false;
+		}
+		for (AggregatorFactory aggregator : aggregators) {
+			// Filtered aggregator reads filter columns besides the ones its delegate reads.
+			while (aggregator instanceof FilteredAggregatorFactory) {
+				FilteredAggregatorFactory filtered = (FilteredAggregatorFactory) aggregator;
+				if (!addFilterColumns(filtered.getFilter(), required)) {
+					return false;
+				}
+				aggregator = filtered.getAggregator();
+			}
+			// Count of view rows is not count of base rows.
+			if (aggregator instanceof CountAggregatorFactory) {
+				return false;
+			}
+			for (String field : aggregator.requiredFields()) {
+				// View metrics hold partial aggregates, only the aggregator they were combined with reads them right
+				// (sum of per row maxima is not sum of view maxima).
+				AggregatorFactory metric = view.metrics.get(field);
+				if (metric != null && !metric.getCombiningFactory().equals(aggregator.getCombiningFactory())) {
+					return false;
+				}
+			}
+			required.addAll(aggregator.requiredFields());
+		}
+		return view.columns.containsAll(required)
+				&& isAligned(view.getSpec().getGranularity(), granularity, query.getIntervals(), base.getDataInterval());
+	}
+
+	/**
+	 * Adds dimensions filter reads to required columns.
+	 *
+	 * @return false if filter type is not known.
+	 */
+	private static boolean addFilterColumns(DimFilter filter, Set<String> required) {
+		if (filter == null) {
+			return true;
+		}
+		if (filter instanceof AndDimFilter) {
+			return addFilterColumns(((AndDimFilter) filter).getFields(), required);
+		}
+		if (filter instanceof OrDimFilter) {
+			return addFilterColumns(((OrDimFilter) filter).getFields(), required);
+		}
+		if (filter instanceof NotDimFilter) {
+			return addFilterColumns(((NotDimFilter) filter).getField(), required);
+		}
+		if (filter instanceof SelectorDimFilter) {
+			required.add(((SelectorDimFilter) filter).getDimension());
+		} else if (filter instanceof InDimFilter) {
+			required.add(((InDimFilter) filter).getDimension());
+		} else if (filter instanceof BoundDimFilter) {
+			required.add(((BoundDimFilter) filter).getDimension());
+		} else if (filter instanceof RegexDimFilter) {
+			required.add(((RegexDimFilter) filter).getDimension());
+		} else if (filter instanceof SearchQueryDimFilter) {
+			required.add(((SearchQueryDimFilter) filter).getDimension());
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	private static boolean addFilterColumns(List<DimFilter> filters, Set<String> required) {
+		for (DimFilter filter : filters) {
+			if (!addFilterColumns(filter, required)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * View rows are truncated to view granularity, so every query bucket and interval boundary
+	 * inside data interval has to be a view bucket boundary. With ALL granularity result timestamp is
+	 * start of data when query starts before it, so view has to start where base segment does.
+	 */
+	private static boolean isAligned(QueryGranularity viewGranularity, QueryGranularity queryGranularity,
+			List<Interval> intervals, Interval dataInterval) {
+		if (NONE.equals(viewGranularity)) {
+			return true;
+		}
+		if (NONE.equals(queryGranularity)) {
+			return false;
+		}
+		long dataStart = viewGranularity.truncate(dataInterval.getStartMillis());
+		long dataEnd = dataInterval.getEndMillis() + 1;
+		for (Interval interval : intervals) {
+			long start = interval.getStartMillis();
+			long end = interval.getEndMillis();
+			if (start > dataStart && viewGranularity.truncate(start) != start) {
+				return false;
+			}
+			if (end < dataEnd && viewGranularity.truncate(end) != end) {
+				return false;
+			}
+			if (ALL.equals(queryGranularity)) {
+				if (start < dataInterval.getStartMillis() && dataStart != dataInterval.getStartMillis()) {
+					return false;
+				}
+				continue;
+			}
+			int checks = 0;
+			for (long bucket = queryGranularity.truncate(Math.max(start, dataStart)); bucket < Math.min(end, dataEnd);
+					bucket = queryGranularity.next(bucket)) {
+				if (viewGranularity.truncate(bucket) != bucket || ++checks > MAX_ALIGNMENT_CHECKS) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects time spent in startup phases (query engine initialization, segment loading, warm-up),
+ * so slow cold starts can be broken down by phase. Phases recorded more than once are summed.
+ */
+public class StartupReport {
+	private static final Map<String, long[]> phases = new LinkedHashMap<String, long[]>();
+
+	/**
+	 * @param phase : Name of phase, like "factory.GroupByQuery" or "segments.load"
+	 * @param startNanos : System.nanoTime() taken when phase started
+	 */
+	public static void record(String phase, long startNanos) {
+		long elapsed = System.nanoTime() - startNanos;
+		synchronized (phases) {
+			long[] stats = phases.get(phase);
+			if (stats == null) {
+				stats = new long[2];
+				phases.put(phase, stats);
+			}
+			stats[0] += elapsed;
+			stats[1]++;
+		}
+	}
+
+	/**
+	 * @return Time spent per phase in milliseconds, in order phases were first recorded.
+	 */
+	public static Map<String, Long> getPhases() {
+		Map<String, Long> millis = new LinkedHashMap<String, Long>();
+		synchronized (phases) {
+			for (Map.Entry<String, long[]> entry : phases.entrySet()) {
+				millis.put(entry.getKey(), TimeUnit.NANOSECONDS.toMillis(entry.getValue()[0]));
+			}
+		}
+		return millis;
+	}
+
+	public static void reset() {
+		synchronized (phases) {
+			phases.clear();
+		}
+	}
+
+	/**
+	 * @return Printable report with one line per phase.
+	 */
+	public static String report() {
+		StringBuilder report = new StringBuilder("Startup phases:\n");
+		synchronized (phases) {
+			for (Map.Entry<String, long[]> entry : phases.entrySet()) {
+				report.append(String.format("  %-40s %8d ms (%d times)%n", entry.getKey(),
+						TimeUnit.NANOSECONDS.toMillis(entry.getValue()[0]), entry.getValue()[1]));
+			}
+		}
+		return report.toString();
+	}
+}
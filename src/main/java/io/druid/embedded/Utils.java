@@ -16,6 +16,7 @@
 
 package io.druid.embedded;
 
+import io.druid.collections.ResourceHolder;
 import io.druid.collections.StupidPool;
 import io.druid.query.IntervalChunkingQueryRunnerDecorator;
 import io.druid.query.Query;
@@ -43,6 +44,8 @@ public class Utils {
 		}
 
 		public ByteBuffer get() {
+			// Pooled buffers are kept for the life of the pool.
+			MemoryBudget.getInstance().reserve(MemoryBudget.PROCESSING_BUFFERS, capacity);
 			return ByteBuffer.allocate(capacity);
 		}
 	}
@@ -57,8 +60,22 @@ public class Utils {
 	    public void registerQuery(Query query, ListenableFuture future) {}
 	};
 	
+	/**
+	 * Time spent taking buffers (including allocation and waiting for memory budget) is reported
+	 * to QueryProfiler.
+	 */
 	public static StupidPool<ByteBuffer> getBufferPool() {
-	    return new StupidPool<ByteBuffer>(new ByteBufferSuplier(MAX_TOTAL_BUFFER_SIZE / 2));
+	    return new StupidPool<ByteBuffer>(new ByteBufferSuplier(MAX_TOTAL_BUFFER_SIZE / 2)) {
+	    	@Override
+	    	public ResourceHolder<ByteBuffer> take() {
+	    		long start = System.nanoTime();
+	    		try {
+	    			return super.take();
+	    		} finally {
+	    			QueryProfiler.recordBufferWait(System.nanoTime() - start);
+	    		}
+	    	}
+	    };
 	}
 
 	public static IntervalChunkingQueryRunnerDecorator NoopIntervalChunkingQueryRunnerDecorator() {
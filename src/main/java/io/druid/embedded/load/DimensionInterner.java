@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded.load;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.druid.segment.QueryableIndex;
+import io.druid.segment.column.BitmapIndex;
+import io.druid.segment.column.Column;
+
+/**
+ * Per-column intern tables for dimension values. Loaders use it to hand out one canonical String
+ * instance per distinct value, so low cardinality dimensions (colo, pool, metric etc) don't create
+ * a new String for every row and the incremental index dictionaries always see the same instance
+ * (with its hash code already computed).
+ * Each column table is bounded by maxValuesPerColumn. Once a column is full, new values are returned
+ * as is, so high cardinality columns (like timestamps or URLs) don't grow the table without limit.
+ * This class is not thread-safe, one interner should be used by one loader at a time.
+ */
+public class DimensionInterner {
+	public static final int DEFAULT_MAX_VALUES_PER_COLUMN = 10000;
+
+	private final int maxValuesPerColumn;
+	private final Map<String, ValueTable> tables = new HashMap<String, ValueTable>();
+
+	public DimensionInterner() {
+		this(DEFAULT_MAX_VALUES_PER_COLUMN);
+	}
+
+	/**
+	 * @param maxValuesPerColumn : Maximum number of canonical values kept per column.
+	 */
+	public DimensionInterner(int maxValuesPerColumn) {
+		if (maxValuesPerColumn <= 0) {
+			throw new IllegalArgumentException("maxValuesPerColumn must be positive, got " + maxValuesPerColumn);
+		}
+		this.maxValuesPerColumn = maxValuesPerColumn;
+	}
+
+	public String intern(String column, String value) {
+		if (value == null) {
+			return null;
+		}
+		return intern(column, value, 0, value.length());
+	}
+
+	/**
+	 * Returns canonical instance of source.substring(start, end) for given column. No String is allocated
+	 * if value is already present in the table.
+	 */
+	public String intern(String column, String source, int start, int end) {
+		return getTable(column).intern(source, start, end);
+	}
+
+	/**
+	 * Pre-seeds tables with dimension values of previously created segment. Columns having more distinct
+	 * values than maxValuesPerColumn are skipped as interning does not pay off for them.
+	 *
+	 * @param index : Segment whose dimension dictionaries are used for seeding.
+	 */
+	public void seed(QueryableIndex index) {
+		for (String dimension : index.getAvailableDimensions()) {
+			Column column = index.getColumn(dimension);
+			if (column == null) {
+				continue;
+			}
+			BitmapIndex bitmapIndex = column.getBitmapIndex();
+			if (bitmapIndex == null || bitmapIndex.getCardinality() > maxValuesPerColumn) {
+				continue;
+			}
+			for (int i = 0; i < bitmapIndex.getCardinality(); i++) {
+				String value = bitmapIndex.getValue(i);
+				if (value != null) {
+					intern(dimension, value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Number of canonical values currently kept for given column.
+	 */
+	public int size(String column) {
+		ValueTable table = tables.get(column);
+		return table == null ? 0 : table.size;
+	}
+
+	public int getMaxValuesPerColumn() {
+		return maxValuesPerColumn;
+	}
+
+	private ValueTable getTable(String column) {
+		ValueTable table = tables.get(column);
+		if (table == null) {
+			table = new ValueTable(maxValuesPerColumn);
+			tables.put(column, table);
+		}
+		return table;
+	}
+
+	/**
+	 * Open addressing hash set of Strings which can be probed with a region of another String.
+	 * Capacity is at least twice of the bound so probing always ends at an empty slot.
+	 */
+	private static class ValueTable {
+		private final String[] slots;
+		private final int mask;
+		private final int maxSize;
+		private int size;
+
+		ValueTable(int maxSize) {
+			int capacity = 16;
+			while (capacity < maxSize * 2) {
+				capacity <<= 1;
+			}
+			this.slots = new String[capacity];
+			this.mask = capacity - 1;
+			this.maxSize = maxSize;
+		}
+
+		String intern(String source, int start, int end) {
+			int length = end - start;
+			// Same hash as String.hashCode() so canonical instances hash identically.
+			int hash = 0;
+			for (int i = start; i < end; i++) {
+				hash = 31 * hash + source.charAt(i);
+			}
+			int slot = (hash ^ (hash >>> 16)) & mask;
+			String candidate;
+			while ((candidate = slots[slot]) != null) {
+				if (candidate.length() == length && candidate.regionMatches(0, source, start, length)) {
+					return candidate;
+				}
+				slot = (slot + 1) & mask;
+			}
+			String value = (start == 0 && end == source.length()) ? source : source.substring(start, end);
+			if (size < maxSize) {
+				slots[slot] = value;
+				size++;
+			}
+			return value;
+		}
+	}
+}
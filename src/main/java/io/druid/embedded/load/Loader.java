@@ -16,10 +16,14 @@
 
 package io.druid.embedded.load;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import io.druid.data.input.InputRow;
 import io.druid.data.input.impl.DimensionSchema;
+import io.druid.segment.QueryableIndex;
 
 /**
  * This abstract class is interface for loading data of various formats. Possible implementation can be
@@ -30,10 +34,50 @@ public abstract class Loader implements Iterable<InputRow> {
 	  protected List<String> columns;
 	  protected List<String> dimensions;
 	  protected String timestampDimension;
+	  protected DimensionInterner interner;
+	  protected Map<String, String> sketchColumns = new LinkedHashMap<String, String>();
 	  
 	  public Loader(List<String> cols, List<String> dims, String ts) {
 		  this.columns = cols;
 		  this.dimensions = dims;
 		  this.timestampDimension = ts;
+		  this.interner = new DimensionInterner();
+	  }
+
+	  public DimensionInterner getInterner() {
+		  return interner;
+	  }
+
+	  /**
+	   * Replaces intern tables used for dimension values, for example to reuse tables of previous loader.
+	   */
+	  public void setInterner(DimensionInterner interner) {
+		  this.interner = interner;
+	  }
+
+	  /**
+	   * Pre-seeds intern tables with dimension values of previously created segment, so rows of new
+	   * data share String instances with already known values.
+	   */
+	  public void seedDimensionValues(QueryableIndex index) {
+		  interner.seed(index);
+	  }
+
+	  /**
+	   * Declares column for which cardinality sketch (hyperUnique metric) is built at ingestion time.
+	   * Values of sketch columns are not interned as such columns are usually of high cardinality.
+	   *
+	   * @param column : Input column whose distinct values are counted (like URL)
+	   * @param metricName : Name of hyperUnique metric in created segment
+	   */
+	  public void addSketchColumn(String column, String metricName) {
+		  sketchColumns.put(column, metricName);
+	  }
+
+	  /**
+	   * @return Map of sketch column to its hyperUnique metric name.
+	   */
+	  public Map<String, String> getSketchColumns() {
+		  return Collections.unmodifiableMap(sketchColumns);
 	  }
 }
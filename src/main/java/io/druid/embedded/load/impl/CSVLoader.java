@@ -20,12 +20,10 @@ import java.util.Iterator;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.StringTokenizer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -51,6 +49,9 @@ public class CSVLoader extends Loader {
     private static final Logger LOG = LoggerFactory.getLogger(CSVLoader.class);
 
 	protected Reader reader;
+	private int[] fieldStarts;
+	private int[] fieldEnds;
+	private boolean[] internedColumns;
 	
 	/**
 	 * @param reader : Reader object pointing to CSV file
@@ -68,25 +69,58 @@ public class CSVLoader extends Loader {
 		return new CSVReaderIterator();
 	}
 
+	/**
+	 * Splits row on comma (skipping empty fields) without creating intermediate token Strings.
+	 * Values of dimension columns are resolved through the loader's intern tables.
+	 */
 	protected Map<String, Object> parse(String row) {
-		List<String> data = new ArrayList<String>();
-		StringTokenizer stk = new StringTokenizer(row, ",");
-		while(stk.hasMoreTokens()) {
-			data.add(stk.nextToken());
+		int numColumns = columns.size();
+		if (fieldStarts == null || fieldStarts.length != numColumns) {
+			fieldStarts = new int[numColumns];
+			fieldEnds = new int[numColumns];
+			internedColumns = new boolean[numColumns];
+			for (int i = 0; i < numColumns; i++) {
+				String column = columns.get(i);
+				internedColumns[i] = dimensions.contains(column) && !sketchColumns.containsKey(column);
+			}
+		}
+		int numFields = 0;
+		int length = row.length();
+		int pos = 0;
+		while (pos < length) {
+			while (pos < length && row.charAt(pos) == ',') {
+				pos++;
+			}
+			if (pos == length) {
+				break;
+			}
+			if (numFields == numColumns) {
+				return null;
+			}
+			fieldStarts[numFields] = pos;
+			while (pos < length && row.charAt(pos) != ',') {
+				pos++;
+			}
+			fieldEnds[numFields++] = pos;
 		}
-	    Map<String, Object> map = new HashMap<String, Object>();
-	    if(data.size() != columns.size()) {
+	    if(numFields != numColumns) {
 	    	return null;
 	    }
-	    for (int i = 0; i < columns.size(); i++) {
-	    	if (data.get(i).equals("null") || data.get(i).isEmpty()) {
+	    Map<String, Object> map = new HashMap<String, Object>(numColumns * 2);
+	    for (int i = 0; i < numColumns; i++) {
+	    	int start = fieldStarts[i];
+	    	int fieldLength = fieldEnds[i] - start;
+	    	if (fieldLength == 4 && row.regionMatches(start, "null", 0, 4)) {
 	    		continue;
 	    	} else {
+	    		String column = columns.get(i);
 	    		//Column name "value" is treated as special column containing value of metric
-	    		if (columns.get(i).equals("value")) {
-	    			map.put(columns.get(i), Float.parseFloat(data.get(i)));
+	    		if (column.equals("value")) {
+	    			map.put(column, Float.parseFloat(row.substring(start, fieldEnds[i])));
+	    		} else if (internedColumns[i]) {
+	    			map.put(column, interner.intern(column, row, start, fieldEnds[i]));
 	    		} else {
-	    			map.put(columns.get(i), data.get(i));
+	    			map.put(column, row.substring(start, fieldEnds[i]));
 	    		}
 	    	}
 	    }
@@ -100,13 +134,17 @@ public class CSVLoader extends Loader {
 	    	
 	    public CSVReaderIterator() {
 	      this.breader = new BufferedReader(reader);
+	      // Dimensions and sketch columns may have changed since last iteration.
+	      fieldStarts = null;
 	    }
 
 	    protected Long getTimestamp(Map<String, Object> map) {
 	    	if (timestampDimension == null) {
 	    		return 1l;
 	    	} else {
-	    	    LOG.info("Timestamp: {}", new Date(Long.valueOf((String)map.get(timestampDimension))));
+	    	    if (LOG.isDebugEnabled()) {
+	    	    	LOG.debug("Timestamp: {}", new Date(Long.valueOf((String)map.get(timestampDimension))));
+	    	    }
 	    		return (Long) Long.valueOf((String)map.get(timestampDimension));
 	    	}
 	    }
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015 eBay Software Foundation
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.druid.embedded;
+
+import io.druid.data.input.Row;
+import io.druid.data.input.impl.DimensionSchema;
+import io.druid.data.input.impl.DimensionsSpec;
+import io.druid.data.input.impl.StringDimensionSchema;
+import io.druid.data.input.impl.TimestampSpec;
+import io.druid.embedded.load.Loader;
+import io.druid.embedded.load.impl.CSVLoader;
+import io.druid.granularity.QueryGranularity;
+import io.druid.query.Druids;
+import io.druid.query.Query;
+import io.druid.query.Result;
+import io.druid.query.aggregation.AggregatorFactory;
+import io.druid.query.aggregation.LongSumAggregatorFactory;
+import io.druid.query.aggregation.cardinality.CardinalityAggregatorFactory;
+import io.druid.query.aggregation.hyperloglog.HyperLogLogCollector;
+import io.druid.query.aggregation.hyperloglog.HyperUniquesAggregatorFactory;
+import io.druid.query.groupby.GroupByQuery;
+import io.druid.query.spec.QuerySegmentSpecs;
+import io.druid.query.timeseries.TimeseriesResultValue;
+import io.druid.segment.QueryableIndex;
+import io.druid.segment.incremental.IncrementalIndexSchema;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.joda.time.Interval;
+
+import com.google.common.collect.Lists;
+import com.metamx.common.guava.Sequence;
+import com.metamx.common.guava.Sequences;
+
+/**
+ * Compares exact distinct count (groupBy on the column) with approximate distinct count using ingest
+ * time sketch (hyperUnique) and query time sketch (cardinality aggregator).
+ * Run with : java io.druid.embedded.DistinctCountBenchmark [rows] [distinctUrls] [iterations]
+ */
+public class DistinctCountBenchmark {
+	private static final List<String> COLUMNS = Arrays.asList("colo", "pool", "URL", "TS", "count");
+	private static final Interval INTERVAL = new Interval(0, 1000L * 1000 * 1000 * 1000);
+
+	public static void main(String[] args) throws IOException {
+		int rows = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+		int distinctUrls = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+		Set<String> urls = new HashSet<String>();
+		QueryableIndex index = createIndex(rows, distinctUrls, urls);
+		System.out.println(String.format("rows=%d, distinct URLs=%d, segment rows=%d", rows, urls.size(), index.getNumRows()));
+
+		final GroupByQuery exact = GroupByQuery.builder()
+				.setDataSource("test")
+				.setQuerySegmentSpec(QuerySegmentSpecs.create(INTERVAL))
+				.setGranularity(QueryGranularity.fromString("ALL"))
+				.addDimension("URL")
+				.addAggregator(new LongSumAggregatorFactory("agg_count", "agg_count"))
+				.build();
+		final Query ingestSketch = Druids.newTimeseriesQueryBuilder()
+				.dataSource("test")
+				.intervals(QuerySegmentSpecs.create(INTERVAL))
+				.granularity(QueryGranularity.fromString("ALL"))
+				.aggregators(Arrays.<AggregatorFactory>asList(new HyperUniquesAggregatorFactory("unique_urls", "unique_urls")))
+				.build();
+		final Query querySketch = Druids.newTimeseriesQueryBuilder()
+				.dataSource("test")
+				.intervals(QuerySegmentSpecs.create(INTERVAL))
+				.granularity(QueryGranularity.fromString("ALL"))
+				.aggregators(Arrays.<AggregatorFactory>asList(
+						new CardinalityAggregatorFactory("unique_urls", Arrays.asList("URL"), false)))
+				.build();
+
+		double exactCount = measure("groupBy (exact)", exact, index, iterations);
+		if (exactCount != urls.size()) {
+			throw new IllegalStateException(String.format("groupBy returned %.0f URLs, data has %d", exactCount, urls.size()));
+		}
+		double ingestCount = measure("hyperUnique (ingest sketch)", ingestSketch, index, iterations);
+		double queryCount = measure("cardinality (query sketch)", querySketch, index, iterations);
+		System.out.println(String.format("hyperUnique error=%.2f%%, cardinality error=%.2f%%",
+				100 * (ingestCount - exactCount) / exactCount, 100 * (queryCount - exactCount) / exactCount));
+	}
+
+	/**
+	 * @return Distinct count returned by query.
+	 */
+	private static double measure(String name, Query query, QueryableIndex index, int iterations) {
+		// Warm up
+		double distinct = distinctCount(query, index);
+		long allocated = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			long allocatedBefore = allocatedBytes();
+			distinct = distinctCount(query, index);
+			allocated += allocatedBytes() - allocatedBefore;
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.println(String.format("%-30s distinct=%.0f avg latency=%.2f ms avg allocation=%.2f MB",
+				name, distinct, elapsed / 1e6 / iterations, allocated / 1024.0 / 1024.0 / iterations));
+		return distinct;
+	}
+
+	/**
+	 * Queries run through merging path, as single segment groupBy results are not merged across
+	 * intermediate row batches and exact count needs the merge anyway.
+	 */
+	@SuppressWarnings("unchecked")
+	private static double distinctCount(Query query, QueryableIndex index) {
+		Sequence sequence = QueryHelper.run(query, Arrays.asList(index), new HashMap<String, Object>());
+		if (query instanceof GroupByQuery) {
+			ArrayList<Row> results = Sequences.toList(sequence, Lists.<Row>newArrayList());
+			return results.size();
+		}
+		ArrayList<Result<TimeseriesResultValue>> results =
+				Sequences.toList(sequence, Lists.<Result<TimeseriesResultValue>>newArrayList());
+		return ((HyperLogLogCollector) results.get(0).getValue().getMetric("unique_urls")).estimateCardinality();
+	}
+
+	/**
+	 * @return Bytes allocated by current thread so far, or -1 if JVM does not support it.
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/**
+	 * @param urls : Filled with URLs present in generated data
+	 */
+	private static QueryableIndex createIndex(int rows, int distinctUrls, Set<String> urls) throws IOException {
+		Random random = new Random(0);
+		StringBuilder csv = new StringBuilder();
+		for (int i = 0; i < rows; i++) {
+			String url = "/url/" + random.nextInt(distinctUrls);
+			urls.add(url);
+			csv.append("colo").append(random.nextInt(5)).append(',')
+				.append("pool").append(random.nextInt(50)).append(',')
+				.append(url).append(',')
+				.append(1000L * i).append(',')
+				.append(1 + random.nextInt(10)).append('\n');
+		}
+		Loader loader = new CSVLoader(new StringReader(csv.toString()), COLUMNS, COLUMNS, "TS");
+		loader.addSketchColumn("URL", "unique_urls");
+
+		List<DimensionSchema> dimensions = new ArrayList<DimensionSchema>();
+		for (String dim : Arrays.asList("colo", "pool", "URL")) {
+			dimensions.add(new StringDimensionSchema(dim));
+		}
+		IncrementalIndexSchema indexSchema = new IncrementalIndexSchema(0, new TimestampSpec("timestamp", "iso", null),
+				QueryGranularity.fromString("HOUR"), new DimensionsSpec(dimensions, null, null),
+				new AggregatorFactory[] {new LongSumAggregatorFactory("agg_count", "count")}, true);
+		return IndexHelper.getQueryableIndex(loader, indexSchema);
+	}
+}
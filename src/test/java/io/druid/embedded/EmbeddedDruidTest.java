@@ -16,6 +16,7 @@
 
 package io.druid.embedded;
 
+import io.druid.data.input.InputRow;
 import io.druid.data.input.Row;
 import io.druid.data.input.impl.DimensionSchema;
 import io.druid.data.input.impl.DimensionsSpec;
@@ -29,9 +30,11 @@ import io.druid.query.Druids;
 import io.druid.query.Query;
 import io.druid.query.Result;
 import io.druid.query.aggregation.AggregatorFactory;
+import io.druid.query.aggregation.CountAggregatorFactory;
 import io.druid.query.aggregation.DoubleMaxAggregatorFactory;
 import io.druid.query.aggregation.DoubleMinAggregatorFactory;
 import io.druid.query.aggregation.DoubleSumAggregatorFactory;
+import io.druid.query.aggregation.FilteredAggregatorFactory;
 import io.druid.query.aggregation.LongMaxAggregatorFactory;
 import io.druid.query.aggregation.LongMinAggregatorFactory;
 import io.druid.query.aggregation.LongSumAggregatorFactory;
@@ -40,14 +43,19 @@ import io.druid.query.aggregation.histogram.ApproximateHistogramAggregatorFactor
 import io.druid.query.aggregation.histogram.ApproximateHistogramFoldingAggregatorFactory;
 import io.druid.query.aggregation.histogram.QuantilePostAggregator;
 import io.druid.query.aggregation.histogram.QuantilesPostAggregator;
+import io.druid.query.aggregation.hyperloglog.HyperLogLogCollector;
+import io.druid.query.aggregation.hyperloglog.HyperUniquesAggregatorFactory;
 import io.druid.query.filter.DimFilter;
 import io.druid.query.filter.DimFilters;
 import io.druid.query.groupby.GroupByQuery;
+import io.druid.query.groupby.orderby.DefaultLimitSpec;
+import io.druid.query.groupby.orderby.OrderByColumnSpec;
 import io.druid.query.spec.QuerySegmentSpecs;
 import io.druid.query.timeseries.TimeseriesResultValue;
 import io.druid.query.topn.TopNQuery;
 import io.druid.query.topn.TopNQueryBuilder;
 import io.druid.segment.QueryableIndex;
+import io.druid.segment.column.Column;
 import io.druid.segment.incremental.IncrementalIndexSchema;
 import io.imply.druid.example.aggregator.ExampleSumAggregatorFactory;
 
@@ -58,8 +66,10 @@ import java.io.IOException;
 import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.joda.time.DateTime;
 import org.joda.time.Interval;
@@ -67,17 +77,41 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import com.google.common.collect.Lists;
+import com.google.common.io.Files;
 import com.metamx.common.guava.Sequence;
 import com.metamx.common.guava.Sequences;
 
 
 public class EmbeddedDruidTest {
+	/**
+	 * Columns of report.csv test data.
+	 */
+	public static final List<String> REPORT_COLUMNS = Arrays.asList("colo", "pool", "report", "URL", "TS", "metric", "value", "count", "min", "max", "sum");
 
 	public static QueryableIndex createDruidSegments() throws IOException {
 	//  Create druid segments from raw data
-		Reader reader = new BufferedReader(new FileReader(new File("./src/test/resources/report.csv")));
+	    try (Reader reader = openReport()) {
+	    	return IndexHelper.getQueryableIndex(createLoader(reader), createIndexSchema());
+	    }
+	}
+
+	public static Reader openReport() throws IOException {
+		return new BufferedReader(new FileReader(new File("./src/test/resources/report.csv")));
+	}
+
+	/**
+	 * @return Loader of report.csv having all columns as dimensions.
+	 */
+	public static Loader createLoader(Reader reader) {
+		return createLoader(reader, REPORT_COLUMNS);
+	}
+
+	public static Loader createLoader(Reader reader, List<String> dimensions) {
+		return new CSVLoader(reader, REPORT_COLUMNS, dimensions, "TS");
+	}
 
-	    List<String> columns = Arrays.asList("colo", "pool", "report", "URL", "TS", "metric", "value", "count", "min", "max", "sum");
+	public static IncrementalIndexSchema createIndexSchema() {
+	    List<String> columns = REPORT_COLUMNS;
 	    List<String> exclusions = Arrays.asList("_Timestamp", "_Machine", "_ThreadId", "_Query");
 	    List<String> metrics = Arrays.asList("value", "count", "min", "max", "sum", "esum");
 	    List<DimensionSchema> dimensions = new ArrayList<DimensionSchema>();
@@ -86,7 +120,6 @@ public class EmbeddedDruidTest {
 	    }
 	    dimensions.removeAll(exclusions);
 	    dimensions.removeAll(metrics);
-        Loader loader = new CSVLoader(reader, columns, columns, "TS");
 
 	    DimensionsSpec dimensionsSpec = new DimensionsSpec(dimensions, null, null);
 	    AggregatorFactory[] metricsAgg = new AggregatorFactory[] {
@@ -96,10 +129,8 @@ public class EmbeddedDruidTest {
 	        new DoubleSumAggregatorFactory("agg_sum", "sum"),
 //	        new ExampleSumAggregatorFactory("eagg_sum", "esum")
 	    };
-	    IncrementalIndexSchema indexSchema = new IncrementalIndexSchema(0, new TimestampSpec("timestamp", "iso", null),
+	    return new IncrementalIndexSchema(0, new TimestampSpec("timestamp", "iso", null),
                 QueryGranularity.fromString("ALL"), dimensionsSpec, metricsAgg, false);
-	    QueryableIndex index = IndexHelper.getQueryableIndex(loader, indexSchema);
-	    return index;
 	}
 	
 	@Test
@@ -216,4 +247,465 @@ public class EmbeddedDruidTest {
 	    Assert.assertEquals(results.size(), 1);
 	}
 
+	@Test
+	public void dimensionValuesAreInterned() throws IOException {
+		try (Reader reader = openReport()) {
+			Loader loader = createLoader(reader);
+
+			List<InputRow> rows = Lists.newArrayList(loader);
+			Assert.assertEquals(4, rows.size());
+			for (InputRow row : rows) {
+				Assert.assertEquals("r1cart", row.getDimension("pool").get(0));
+				Assert.assertSame(rows.get(0).getRaw("pool"), row.getRaw("pool"));
+				Assert.assertSame(rows.get(0).getRaw("metric"), row.getRaw("metric"));
+			}
+			Assert.assertEquals(2, loader.getInterner().size("colo"));
+		}
+	}
+
+	@Test
+	public void onlyDimensionValuesAreInterned() throws IOException {
+		try (Reader reader = openReport()) {
+			Loader loader = createLoader(reader, Arrays.asList("colo", "pool", "report", "metric"));
+
+			List<InputRow> rows = Lists.newArrayList(loader);
+			Assert.assertEquals(4, rows.size());
+			Assert.assertEquals(1, loader.getInterner().size("pool"));
+			Assert.assertEquals(0, loader.getInterner().size("TS"));
+			Assert.assertEquals(0, loader.getInterner().size("count"));
+		}
+	}
+
+	@Test
+	public void seededDimensionValuesAreReused() throws IOException {
+		QueryableIndex index = createDruidSegments();
+		try (Reader reader = openReport()) {
+			Loader loader = createLoader(reader);
+
+			loader.seedDimensionValues(index);
+			Assert.assertEquals(1, loader.getInterner().size("pool"));
+			Assert.assertEquals(2, loader.getInterner().size("colo"));
+			String seeded = loader.getInterner().intern("pool", new String("r1cart"));
+
+			for (InputRow row : Lists.newArrayList(loader)) {
+				Assert.assertSame(seeded, row.getRaw("pool"));
+			}
+			Assert.assertEquals(1, loader.getInterner().size("pool"));
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void approximateDistinctCount() throws IOException {
+		List<DimensionSchema> dimensions = new ArrayList<DimensionSchema>();
+		for (String dim : REPORT_COLUMNS) {
+			dimensions.add(new StringDimensionSchema(dim));
+		}
+		IncrementalIndexSchema indexSchema = new IncrementalIndexSchema(0, new TimestampSpec("timestamp", "iso", null),
+				QueryGranularity.fromString("ALL"), new DimensionsSpec(dimensions, null, null),
+				new AggregatorFactory[] {new LongSumAggregatorFactory("agg_count", "count")}, false);
+		QueryableIndex index;
+		try (Reader reader = openReport()) {
+			Loader loader = createLoader(reader);
+			loader.addSketchColumn("URL", "unique_urls");
+			index = IndexHelper.getQueryableIndex(loader, indexSchema);
+		}
+
+		Query query = Druids.newTimeseriesQueryBuilder()
+				.dataSource("test")
+				.intervals(QuerySegmentSpecs.create(new Interval(0, new DateTime().getMillis())))
+				.granularity(QueryGranularity.fromString("ALL"))
+				.aggregators(Arrays.<AggregatorFactory>asList(new HyperUniquesAggregatorFactory("unique_urls", "unique_urls")))
+				.build();
+		Sequence<Result<TimeseriesResultValue>> sequence = QueryHelper.run(query, index);
+		ArrayList<Result<TimeseriesResultValue>> results = Sequences.toList(sequence, Lists.<Result<TimeseriesResultValue>>newArrayList());
+		Assert.assertEquals(1, results.size());
+		// Aggregators are not finalized by default, so metric is raw sketch.
+		HyperLogLogCollector sketch = (HyperLogLogCollector) results.get(0).getValue().getMetric("unique_urls");
+		Assert.assertEquals(2, Math.round(sketch.estimateCardinality()));
+
+		Map<String, Object> context = new HashMap<String, Object>();
+		context.put(QueryHelper.FINALIZE, true);
+		sequence = QueryHelper.run(query.withOverriddenContext(context), index);
+		results = Sequences.toList(sequence, Lists.<Result<TimeseriesResultValue>>newArrayList());
+		Assert.assertEquals(2, Math.round(results.get(0).getValue().getDoubleMetric("unique_urls")));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void repeatedQueriesHitColumnCache() throws IOException {
+		QueryableIndex index = createDruidSegments();
+		ColumnCache cache = IndexHelper.getColumnCache();
+		Sequences.toList(QueryHelper.run(getTimeseriesQuery(), index), Lists.newArrayList());
+		long hits = cache.getHitCount();
+		Assert.assertTrue(cache.getSizeBytes() > 0);
+
+		Sequences.toList(QueryHelper.run(getTimeseriesQuery(), index), Lists.newArrayList());
+		Assert.assertTrue(cache.getHitCount() > hits);
+		Assert.assertTrue(cache.getSizeBytes() <= cache.getMaxSizeBytes());
+	}
+
+	@Test
+	public void memoryBudgetAppliesBackpressure() {
+		MemoryBudget budget = new MemoryBudget(100, 10, 10);
+		budget.reserve(MemoryBudget.INGESTION, 60);
+		Assert.assertFalse(budget.tryReserve(MemoryBudget.PROCESSING_BUFFERS, 50));
+		try {
+			budget.reserve(MemoryBudget.PROCESSING_BUFFERS, 50);
+			Assert.fail("Reservation over budget should fail");
+		} catch (MemoryBudgetExceededException e) {
+			// expected
+		}
+		budget.admitQuery();
+		Assert.assertEquals(Long.valueOf(60), budget.getUsage().get(MemoryBudget.INGESTION));
+		Assert.assertEquals(Long.valueOf(10), budget.getUsage().get(MemoryBudget.QUERIES));
+
+		budget.release(MemoryBudget.INGESTION, 60);
+		Assert.assertTrue(budget.tryReserve(MemoryBudget.PROCESSING_BUFFERS, 50));
+		Assert.assertEquals(60, budget.getUsedBytes());
+	}
+
+	@Test
+	public void waitingReservationGetsCacheMemory() throws Exception {
+		final MemoryBudget budget = new MemoryBudget(100, 10000, 10);
+		ColumnCache cache = new ColumnCache(100, budget);
+		budget.addReclaimable(cache);
+		budget.reserve(MemoryBudget.INGESTION, 50);
+		Assert.assertTrue(cache.put(this, "a", new long[0], 30));
+
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		Thread waiter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					budget.reserve(MemoryBudget.PROCESSING_BUFFERS, 60);
+				} catch (Throwable t) {
+					failure.set(t);
+				}
+			}
+		});
+		waiter.start();
+		while ((budget.getWaitingCount() == 0 || cache.getEntryCount() > 0) && waiter.isAlive()) {
+			Thread.sleep(10);
+		}
+		// Cache entry was evicted for the waiting reservation, cache can't take memory back meanwhile.
+		Assert.assertEquals(1, budget.getWaitingCount());
+		Assert.assertFalse(cache.put(this, "b", new long[0], 20));
+
+		budget.release(MemoryBudget.INGESTION, 10);
+		waiter.join(10000);
+		Assert.assertNull(failure.get());
+		Assert.assertEquals(Long.valueOf(60), budget.getUsage().get(MemoryBudget.PROCESSING_BUFFERS));
+		Assert.assertEquals(100, budget.getUsedBytes());
+	}
+
+	@Test
+	public void abandonedQueryReleasesReservation() throws IOException {
+		QueryableIndex index = createDruidSegments();
+		MemoryBudget budget = MemoryBudget.getInstance();
+		for (int i = 0; i < 5; i++) {
+			// Result sequence is never consumed.
+			QueryHelper.run(getTimeseriesQuery(), index);
+		}
+		Long reserved = budget.getUsage().get(MemoryBudget.QUERIES);
+		Assert.assertTrue(reserved == null || reserved == 0);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void groupByRewrittenToCheaperQueryType() throws IOException {
+		QueryableIndex index = createDruidSegments();
+		List<DimFilter> filters = new ArrayList<DimFilter>();
+		filters.add(DimFilters.dimEquals("report", "URLTransaction"));
+		filters.add(DimFilters.dimEquals("metric", "Duration"));
+		GroupByQuery total = GroupByQuery.builder()
+			.setDataSource("test")
+			.setQuerySegmentSpec(QuerySegmentSpecs.create(new Interval(0, new DateTime().getMillis())))
+			.setGranularity(QueryGranularity.fromString("ALL"))
+			.addAggregator(new LongSumAggregatorFactory("agg_count", "agg_count"))
+			.setDimFilter(DimFilters.and(filters))
+			.build();
+		GroupByQuery topUrl = GroupByQuery.builder()
+			.setDataSource("test")
+			.setQuerySegmentSpec(QuerySegmentSpecs.create(new Interval(0, new DateTime().getMillis())))
+			.setGranularity(QueryGranularity.fromString("ALL"))
+			.addDimension("URL")
+			.addAggregator(new LongSumAggregatorFactory("agg_count", "agg_count"))
+			.setLimitSpec(new DefaultLimitSpec(
+					Arrays.asList(new OrderByColumnSpec("agg_count", OrderByColumnSpec.Direction.DESCENDING)), 1))
+			.setDimFilter(DimFilters.and(filters))
+			.build();
+
+		QueryPlanner previous = QueryHelper.getQueryPlanner();
+		try {
+			QueryHelper.setQueryPlanner(new QueryPlanner(false, QueryPlanner.TopNPolicy.EXACT));
+			ArrayList<Row> expectedTotal = Sequences.toList(QueryHelper.run(total, index), Lists.<Row>newArrayList());
+			ArrayList<Row> expectedTop = Sequences.toList(QueryHelper.run(topUrl, index), Lists.<Row>newArrayList());
+			Assert.assertEquals(1, expectedTop.size());
+
+			QueryHelper.setQueryPlanner(new QueryPlanner(true, QueryPlanner.TopNPolicy.EXACT));
+			Assert.assertEquals("groupBy without dimensions rewritten to timeseries", QueryHelper.explain(total));
+			Assert.assertTrue(QueryHelper.explain(topUrl).endsWith("rewritten to topN"));
+
+			ArrayList<Row> rewrittenTotal = Sequences.toList(QueryHelper.run(total, index), Lists.<Row>newArrayList());
+			Assert.assertEquals(1, rewrittenTotal.size());
+			Assert.assertEquals(expectedTotal.get(0).getTimestamp(), rewrittenTotal.get(0).getTimestamp());
+			Assert.assertEquals(expectedTotal.get(0).getLongMetric("agg_count"), rewrittenTotal.get(0).getLongMetric("agg_count"));
+
+			ArrayList<Row> rewrittenTop = Sequences.toList(QueryHelper.run(topUrl, index), Lists.<Row>newArrayList());
+			Assert.assertEquals(1, rewrittenTop.size());
+			Assert.assertEquals(expectedTop.get(0).getTimestamp(), rewrittenTop.get(0).getTimestamp());
+			Assert.assertEquals(expectedTop.get(0).getDimension("URL"), rewrittenTop.get(0).getDimension("URL"));
+			Assert.assertEquals(expectedTop.get(0).getLongMetric("agg_count"), rewrittenTop.get(0).getLongMetric("agg_count"));
+			Assert.assertEquals("abc", rewrittenTop.get(0).getDimension("URL").get(0));
+			Assert.assertEquals(12, rewrittenTop.get(0).getLongMetric("agg_count"));
+
+			QueryHelper.setQueryPlanner(new QueryPlanner(true, QueryPlanner.TopNPolicy.NEVER));
+			Assert.assertEquals("Rewriting to topN is disabled", QueryHelper.explain(topUrl));
+		} finally {
+			QueryHelper.setQueryPlanner(previous);
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void queriesRoutedToRollupView() throws IOException {
+		QueryableIndex index = createDruidSegments();
+		List<RollupViews.View> views = IndexHelper.buildRollupViews(index, Arrays.asList(
+				new RollupViewSpec("report_pool_metric", Arrays.asList("report", "pool", "metric"), QueryGranularity.fromString("DAY")),
+				new RollupViewSpec("colo", Arrays.asList("colo"), QueryGranularity.fromString("DAY"))));
+		Assert.assertEquals(2, views.size());
+
+		// Day view starts before base data, so query has to start at data start to get the same timestamp.
+		Interval interval = new Interval(index.getDataInterval().getStartMillis(), new DateTime().getMillis());
+		Query query = Druids.newTimeseriesQueryBuilder()
+				.dataSource("test")
+				.intervals(QuerySegmentSpecs.create(interval))
+				.granularity(QueryGranularity.fromString("ALL"))
+				.aggregators(Arrays.<AggregatorFactory>asList(
+						new LongSumAggregatorFactory("agg_count", "agg_count"),
+						new DoubleSumAggregatorFactory("agg_sum", "agg_sum")))
+				.filters(DimFilters.dimEquals("pool", "r1cart"))
+				.build();
+		Assert.assertSame(views.get(0).getIndex(), RollupViews.route(query, index));
+		Assert.assertTrue(views.get(0).getIndex().getNumRows() < index.getNumRows());
+		ArrayList<Result<TimeseriesResultValue>> fromView = Sequences.toList(QueryHelper.run(query, index),
+				Lists.<Result<TimeseriesResultValue>>newArrayList());
+
+		// Grouping on dimension missing in all views falls back to base segment.
+		TopNQuery byUrl = new TopNQueryBuilder()
+				.threshold(5)
+				.metric("agg_count")
+				.dataSource("test")
+				.intervals(QuerySegmentSpecs.create(new Interval(0, new DateTime().getMillis())))
+				.granularity(QueryGranularity.fromString("ALL"))
+				.dimension("URL")
+				.aggregators(Arrays.<AggregatorFactory>asList(new LongSumAggregatorFactory("agg_count", "agg_count")))
+				.build();
+		Assert.assertSame(index, RollupViews.route(byUrl, index));
+
+		// Query starting before data would get timestamp of view bucket start instead of data start.
+		Query fromEpoch = query.withQuerySegmentSpec(QuerySegmentSpecs.create(new Interval(0, new DateTime().getMillis())));
+		Assert.assertSame(index, RollupViews.route(fromEpoch, index));
+
+		RollupViews.unregister(index);
+		ArrayList<Result<TimeseriesResultValue>> fromBase = Sequences.toList(QueryHelper.run(query, index),
+				Lists.<Result<TimeseriesResultValue>>newArrayList());
+		Assert.assertEquals(fromBase.get(0).getTimestamp(), fromView.get(0).getTimestamp());
+		Assert.assertEquals(fromBase.get(0).getValue().getLongMetric("agg_count"), fromView.get(0).getValue().getLongMetric("agg_count"));
+		Assert.assertEquals(fromBase.get(0).getValue().getDoubleMetric("agg_sum"), fromView.get(0).getValue().getDoubleMetric("agg_sum"));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void mismatchedAggregatorNotRoutedToView() throws IOException {
+		QueryableIndex index = createDruidSegments();
+		IndexHelper.buildRollupViews(index, Arrays.asList(
+				new RollupViewSpec("report_pool_metric", Arrays.asList("report", "pool", "metric"), QueryGranularity.fromString("DAY"))));
+
+		// Sum of per row maxima can't be computed from maxima rolled up in view.
+		Query query = Druids.newTimeseriesQueryBuilder()
+				.dataSource("test")
+				.intervals(QuerySegmentSpecs.create(new Interval(index.getDataInterval().getStartMillis(), new DateTime().getMillis())))
+				.granularity(QueryGranularity.fromString("ALL"))
+				.aggregators(Arrays.<AggregatorFactory>asList(new DoubleSumAggregatorFactory("s", "agg_max")))
+				.filters(DimFilters.dimEquals("pool", "r1cart"))
+				.build();
+		Assert.assertSame(index, RollupViews.route(query, index));
+		ArrayList<Result<TimeseriesResultValue>> withViews = Sequences.toList(QueryHelper.run(query, index),
+				Lists.<Result<TimeseriesResultValue>>newArrayList());
+
+		RollupViews.unregister(index);
+		ArrayList<Result<TimeseriesResultValue>> fromBase = Sequences.toList(QueryHelper.run(query, index),
+				Lists.<Result<TimeseriesResultValue>>newArrayList());
+		Assert.assertEquals(fromBase.get(0).getValue().getDoubleMetric("s"), withViews.get(0).getValue().getDoubleMetric("s"));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void viewsRebuiltOnAppend() throws IOException {
+		QueryableIndex index = createDruidSegments();
+		IndexHelper.buildRollupViews(index, Arrays.asList(
+				new RollupViewSpec("report_pool_metric", Arrays.asList("report", "pool", "metric"), QueryGranularity.fromString("DAY"))));
+		Query query = Druids.newTimeseriesQueryBuilder()
+				.dataSource("test")
+				.intervals(QuerySegmentSpecs.create(new Interval(index.getDataInterval().getStartMillis(), new DateTime().getMillis())))
+				.granularity(QueryGranularity.fromString("ALL"))
+				.aggregators(Arrays.<AggregatorFactory>asList(
+						new LongSumAggregatorFactory("agg_count", "agg_count"),
+						new LongMaxAggregatorFactory("agg_max", "agg_max")))
+				.filters(DimFilters.dimEquals("pool", "r1cart"))
+				.build();
+		long baseCount = ((Result<TimeseriesResultValue>) Sequences.toList(QueryHelper.run(query, index),
+				Lists.newArrayList()).get(0)).getValue().getLongMetric("agg_count");
+
+		QueryableIndex appended;
+		try (Reader reader = openReport()) {
+			appended = IndexHelper.append(index, createLoader(reader), createIndexSchema());
+		}
+		Assert.assertTrue(RollupViews.getViews(index).isEmpty());
+		Assert.assertEquals(1, RollupViews.getViews(appended).size());
+		Assert.assertNotSame(appended, RollupViews.route(query, appended));
+		ArrayList<Result<TimeseriesResultValue>> fromView = Sequences.toList(QueryHelper.run(query, appended),
+				Lists.<Result<TimeseriesResultValue>>newArrayList());
+
+		RollupViews.unregister(appended);
+		ArrayList<Result<TimeseriesResultValue>> fromBase = Sequences.toList(QueryHelper.run(query, appended),
+				Lists.<Result<TimeseriesResultValue>>newArrayList());
+		Assert.assertEquals(2 * baseCount, fromBase.get(0).getValue().getLongMetric("agg_count").longValue());
+		Assert.assertEquals(fromBase.get(0).getTimestamp(), fromView.get(0).getTimestamp());
+		Assert.assertEquals(fromBase.get(0).getValue().getLongMetric("agg_count"), fromView.get(0).getValue().getLongMetric("agg_count"));
+		Assert.assertEquals(fromBase.get(0).getValue().getLongMetric("agg_max"), fromView.get(0).getValue().getLongMetric("agg_max"));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void filteredAggregatorNotRoutedToView() throws IOException {
+		QueryableIndex index = createDruidSegments();
+		IndexHelper.buildRollupViews(index, Arrays.asList(
+				new RollupViewSpec("report_pool_metric", Arrays.asList("report", "pool", "metric"), QueryGranularity.fromString("DAY"))));
+
+		// View has no colo dimension to evaluate aggregator filters on.
+		Query query = Druids.newTimeseriesQueryBuilder()
+				.dataSource("test")
+				.intervals(QuerySegmentSpecs.create(new Interval(index.getDataInterval().getStartMillis(), new DateTime().getMillis())))
+				.granularity(QueryGranularity.fromString("ALL"))
+				.aggregators(Arrays.<AggregatorFactory>asList(
+						new FilteredAggregatorFactory(new LongSumAggregatorFactory("slc_count", "agg_count"), DimFilters.dimEquals("colo", "slc")),
+						new FilteredAggregatorFactory(new CountAggregatorFactory("slc_rows"), DimFilters.dimEquals("colo", "slc"))))
+				.filters(DimFilters.dimEquals("pool", "r1cart"))
+				.build();
+		Assert.assertSame(index, RollupViews.route(query, index));
+		ArrayList<Result<TimeseriesResultValue>> withViews = Sequences.toList(QueryHelper.run(query, index),
+				Lists.<Result<TimeseriesResultValue>>newArrayList());
+
+		RollupViews.unregister(index);
+		ArrayList<Result<TimeseriesResultValue>> fromBase = Sequences.toList(QueryHelper.run(query, index),
+				Lists.<Result<TimeseriesResultValue>>newArrayList());
+		Assert.assertEquals(fromBase.get(0).getValue().getLongMetric("slc_count"), withViews.get(0).getValue().getLongMetric("slc_count"));
+		Assert.assertEquals(fromBase.get(0).getValue().getLongMetric("slc_rows"), withViews.get(0).getValue().getLongMetric("slc_rows"));
+	}
+
+	@Test
+	public void acquiredViewClosedAfterRelease() throws IOException {
+		QueryableIndex index = createDruidSegments();
+		IndexHelper.buildRollupViews(index, Arrays.asList(
+				new RollupViewSpec("report_pool_metric", Arrays.asList("report", "pool", "metric"), QueryGranularity.fromString("DAY"))));
+		Query<?> query = Druids.newTimeseriesQueryBuilder()
+				.dataSource("test")
+				.intervals(QuerySegmentSpecs.create(new Interval(index.getDataInterval().getStartMillis(), new DateTime().getMillis())))
+				.granularity(QueryGranularity.fromString("ALL"))
+				.aggregators(Arrays.<AggregatorFactory>asList(new LongSumAggregatorFactory("agg_count", "agg_count")))
+				.build();
+		RollupViews.View view = RollupViews.acquire(query, index);
+		Assert.assertNotNull(view);
+
+		// View in use stays readable after it is unregistered, until query releases it.
+		RollupViews.unregister(index);
+		Assert.assertNull(RollupViews.acquire(query, index));
+		Assert.assertTrue(view.getIndex().getNumRows() > 0);
+		Assert.assertTrue(view.getIndex().getColumn(Column.TIME_COLUMN_NAME).getLength() > 0);
+		view.release();
+		Assert.assertFalse(view.acquire());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void startupPhasesAreReported() throws Exception {
+		QueryableIndex index = createDruidSegments();
+		Sequences.toList(QueryHelper.run(getTimeseriesQuery(), index), Lists.newArrayList());
+		Assert.assertTrue(StartupReport.getPhases().containsKey("factory.TimeseriesQuery"));
+
+		QueryableIndex cold = createDruidSegments();
+		IndexHelper.warmUp(Arrays.asList(cold), Arrays.asList(Column.TIME_COLUMN_NAME, "colo", "agg_count")).get();
+		Assert.assertNotNull(IndexHelper.getColumnCache().get(cold, Column.TIME_COLUMN_NAME));
+		Assert.assertNotNull(IndexHelper.getColumnCache().get(cold, "agg_count"));
+		Assert.assertTrue(StartupReport.getPhases().containsKey("segments.warmup"));
+		Assert.assertTrue(StartupReport.report().contains("segments.warmup"));
+	}
+
+	@Test
+	public void segmentsLoadedInParallelInOrder() throws IOException {
+		List<InputRow> rows;
+		try (Reader reader = openReport()) {
+			rows = Lists.newArrayList(createLoader(reader));
+		}
+		File tmpDir = Files.createTempDir();
+		List<File> indexDirs = new ArrayList<File>();
+		for (int i = 1; i <= rows.size(); i++) {
+			File indexDir = new File(tmpDir, "segment-" + i);
+			IndexHelper.buildIndex(rows.subList(0, i), createIndexSchema(), indexDir).close();
+			indexDirs.add(indexDir);
+		}
+
+		List<QueryableIndex> indexes = IndexHelper.getQueryableIndexes(indexDirs, 2);
+		Assert.assertEquals(rows.size(), indexes.size());
+		for (int i = 0; i < indexes.size(); i++) {
+			Assert.assertEquals(i + 1, indexes.get(i).getNumRows());
+		}
+		Assert.assertTrue(StartupReport.getPhases().containsKey("segments.load"));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void profiledQueryReportsBreakdown() throws IOException {
+		QueryableIndex index = createDruidSegments();
+		Map<String, Object> context = new HashMap<String, Object>();
+		context.put(QueryProfiler.CONTEXT_KEY, true);
+		Query query = getTimeseriesQuery().withOverriddenContext(context);
+
+		Map<String, Object> responseContext = new HashMap<String, Object>();
+		Sequence<Result<TimeseriesResultValue>> sequence = QueryHelper.run(query, Arrays.asList(index, index), responseContext);
+		List<Result<TimeseriesResultValue>> results = Sequences.toList(sequence, Lists.<Result<TimeseriesResultValue>>newArrayList());
+		Assert.assertEquals(740, results.get(0).getValue().getLongMetric("agg_sum").longValue());
+
+		Map<String, Object> profile = (Map<String, Object>) responseContext.get(QueryProfiler.CONTEXT_KEY);
+		List<Map<String, Object>> segments = (List<Map<String, Object>>) profile.get("segments");
+		Assert.assertEquals(2, segments.size());
+		Map<String, Object> segment = segments.get(0);
+		Assert.assertEquals(3, ((Map<String, Object>) segment.get("filters")).size());
+		long matchedRows = (Long) segment.get("matchedRows");
+		Assert.assertTrue(matchedRows > 0 && matchedRows <= (Long) segment.get("totalRows"));
+		Assert.assertEquals(matchedRows, ((Long) segment.get("scannedRows")).longValue());
+
+		Map<String, Object> total = (Map<String, Object>) profile.get("total");
+		Assert.assertEquals(2 * matchedRows, ((Long) total.get("matchedRows")).longValue());
+		for (String stage : Arrays.asList("filterMillis", "scanMillis", "aggregationMillis", "bufferWaitMillis", "mergeMillis")) {
+			Assert.assertTrue(stage, (Double) total.get(stage) >= 0);
+		}
+
+		// Single segment runner runs eagerly, total still covers it.
+		responseContext.clear();
+		Sequences.toList(QueryHelper.run(query, index, responseContext), Lists.newArrayList());
+		profile = (Map<String, Object>) responseContext.get(QueryProfiler.CONTEXT_KEY);
+		segments = (List<Map<String, Object>>) profile.get("segments");
+		total = (Map<String, Object>) profile.get("total");
+		Assert.assertEquals(1, segments.size());
+		Assert.assertTrue((Double) total.get("totalMillis") >= (Double) segments.get(0).get("totalMillis"));
+
+		responseContext.clear();
+		Sequences.toList(QueryHelper.run(getTimeseriesQuery(), index, responseContext), Lists.newArrayList());
+		Assert.assertFalse(responseContext.containsKey(QueryProfiler.CONTEXT_KEY));
+	}
+
 }